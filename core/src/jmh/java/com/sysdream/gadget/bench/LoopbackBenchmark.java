@@ -0,0 +1,117 @@
+package com.sysdream.gadget.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.sysdream.gadget.GadgetConfig;
+import com.sysdream.gadget.Logger;
+import com.sysdream.gadget.tools.StubServer;
+
+
+/**
+ * End-to-end loopback benchmark
+ *
+ * Round trips through the non-blocking server over TCP on localhost, from
+ * request framing to response decoding, against the stub service.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoopbackBenchmark {
+
+	/**
+	 * Server shared by every benchmark thread
+	 */
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		int port;
+		StubServer server;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+			Logger.setSink(null);
+
+			/* Pick a free port */
+			ServerSocket probe = new ServerSocket(0);
+			this.port = probe.getLocalPort();
+			probe.close();
+
+			this.server = new StubServer(this.port, 16, new GadgetConfig());
+			Thread.sleep(200);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			this.server.stop();
+		}
+	}
+
+
+	/**
+	 * One connection per benchmark thread
+	 */
+
+	@State(Scope.Thread)
+	public static class Client {
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		byte[] request;
+		byte[] response = new byte[4096];
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException {
+			this.socket = new Socket("127.0.0.1", server.port);
+			this.socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(this.socket.getInputStream());
+			this.out = new DataOutputStream(this.socket.getOutputStream());
+			this.request = "[\"com.example.app\",\"getMethods\",3]".getBytes("UTF-8");
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			this.socket.close();
+		}
+
+		int call() throws IOException {
+			this.out.writeInt(this.request.length);
+			this.out.write(this.request);
+			this.out.flush();
+			int size = this.in.readInt();
+			if (size > this.response.length)
+				this.response = new byte[size];
+			this.in.readFully(this.response, 0, size);
+			return size;
+		}
+	}
+
+
+	@Benchmark
+	@Threads(1)
+	public int roundTrip(Client client) throws IOException {
+		return client.call();
+	}
+
+
+	@Benchmark
+	@Threads(4)
+	public int roundTrip4(Client client) throws IOException {
+		return client.call();
+	}
+}
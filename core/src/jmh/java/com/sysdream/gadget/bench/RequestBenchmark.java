@@ -0,0 +1,63 @@
+package com.sysdream.gadget.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sysdream.gadget.Request;
+import com.sysdream.gadget.tools.StubService;
+
+
+/**
+ * Request parsing benchmark
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestBenchmark {
+
+	private String m_legacy;
+	private String m_tagged;
+	private String m_batch;
+
+
+	@Setup
+	public void setup() {
+		StubService.install();
+		this.m_legacy = "[\"com.example.app\",\"isFieldOfType\",42,\"mField\",\"java.lang.String\"]";
+		this.m_tagged = "{\"id\":7,\"call\":[\"com.example.app\",\"getMethods\",3]}";
+		StringBuilder batch = new StringBuilder("{\"id\":8,\"batch\":[");
+		for (int i=0; i<32; i++)
+		{
+			if (i > 0)
+				batch.append(',');
+			batch.append("[\"com.example.app\",\"getClassName\",").append(i).append(']');
+		}
+		this.m_batch = batch.append("]}").toString();
+	}
+
+
+	@Benchmark
+	public Request fromJsonLegacy() {
+		return Request.fromJson(this.m_legacy);
+	}
+
+
+	@Benchmark
+	public Request fromJsonTagged() {
+		return Request.fromJson(this.m_tagged);
+	}
+
+
+	@Benchmark
+	public Request fromJsonBatch() {
+		return Request.fromJson(this.m_batch);
+	}
+}
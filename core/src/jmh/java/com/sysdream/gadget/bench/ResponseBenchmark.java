@@ -0,0 +1,45 @@
+package com.sysdream.gadget.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sysdream.gadget.Response;
+import com.sysdream.gadget.tools.StubService;
+
+
+/**
+ * Response serialization benchmark
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseBenchmark {
+
+	/* Number of strings in the response */
+	@Param({ "1", "100", "10000" })
+	public int size;
+
+	private Response m_response;
+
+
+	@Setup
+	public void setup() {
+		this.m_response = new Response(new StubService(this.size).getMethods(0), true);
+		this.m_response.id = Integer.valueOf(7);
+	}
+
+
+	@Benchmark
+	public byte[] toRaw() {
+		return this.m_response.toRaw();
+	}
+}
@@ -0,0 +1,292 @@
+package com.sysdream.gadget;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+
+/**
+ * Binary codec
+ *
+ * Compact tagged encoding, each value being a 1-byte tag followed by its
+ * big-endian data:
+ *
+ *  NULL, FALSE, TRUE: no data
+ *  INT: 4 bytes, LONG: 8 bytes, DOUBLE: 8 bytes (IEEE 754)
+ *  STRING: 4-byte length + UTF-8 bytes
+ *  ARRAY: 4-byte count + values
+ *  MAP: 4-byte count + (4-byte length + UTF-8 key, value) pairs
+ *
+ * Requests have the same structure as their JSON counterpart (array for a
+ * call, map for tagged and batch requests). Responses are maps holding the
+ * same fields as the JSON responses.
+ */
+
+public class BinaryCodec implements Codec {
+
+	public final static byte TAG_NULL = 0;
+	public final static byte TAG_FALSE = 1;
+	public final static byte TAG_TRUE = 2;
+	public final static byte TAG_INT = 3;
+	public final static byte TAG_LONG = 4;
+	public final static byte TAG_DOUBLE = 5;
+	public final static byte TAG_STRING = 6;
+	public final static byte TAG_ARRAY = 7;
+	public final static byte TAG_MAP = 8;
+
+	private final static String CHARSET = "UTF-8";
+	private final static BinaryCodec instance = new BinaryCodec();
+
+
+	/**
+	 * Retrieve the shared codec
+	 * @return BinaryCodec the shared instance
+	 */
+
+	public static BinaryCodec getInstance() {
+		return instance;
+	}
+
+
+	public String getName() {
+		return "binary";
+	}
+
+
+	/**
+	 * Decode a request from a frame's payload
+	 * @param buf buffer holding the payload
+	 * @param offset payload offset
+	 * @param length payload size
+	 * @return Request the request, null if malformed
+	 */
+
+	public Request decodeRequest(byte[] buf, int offset, int length) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+			return Request.fromJsonTree(this.readValue(in));
+		}
+		catch (BufferUnderflowException e) {
+			return null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+
+	/**
+	 * Encode a response
+	 * @param resp the response to encode
+	 * @param out the stream to write to
+	 */
+
+	public void encodeResponse(Response resp, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		this.writeResponse(data, resp);
+		data.flush();
+	}
+
+
+	/**
+	 * Read a value as a JSON tree, so requests share the JSON parsing logic
+	 */
+
+	private JsonElement readValue(ByteBuffer in) throws IOException {
+		byte tag = in.get();
+		int count;
+		switch (tag) {
+			case TAG_NULL:
+				return JsonNull.INSTANCE;
+			case TAG_FALSE:
+				return new JsonPrimitive(Boolean.FALSE);
+			case TAG_TRUE:
+				return new JsonPrimitive(Boolean.TRUE);
+			case TAG_INT:
+				return new JsonPrimitive(Integer.valueOf(in.getInt()));
+			case TAG_LONG:
+				return new JsonPrimitive(Long.valueOf(in.getLong()));
+			case TAG_DOUBLE:
+				return new JsonPrimitive(Double.valueOf(in.getDouble()));
+			case TAG_STRING:
+				return new JsonPrimitive(this.readString(in));
+			case TAG_ARRAY:
+				count = in.getInt();
+				JsonArray array = new JsonArray();
+				for (int i=0; i<count; i++)
+					array.add(this.readValue(in));
+				return array;
+			case TAG_MAP:
+				count = in.getInt();
+				JsonObject map = new JsonObject();
+				for (int i=0; i<count; i++)
+				{
+					String key = this.readString(in);
+					map.add(key, this.readValue(in));
+				}
+				return map;
+			default:
+				throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+
+	private String readString(ByteBuffer in) throws IOException {
+		int size = in.getInt();
+		if ((size < 0) || (size > in.remaining()))
+			throw new IOException("Bad string size");
+		String str = new String(in.array(), in.arrayOffset() + in.position(), size, CHARSET);
+		in.position(in.position() + size);
+		return str;
+	}
+
+
+	private void writeString(DataOutputStream out, String str) throws UnsupportedEncodingException, IOException {
+		byte[] raw = str.getBytes(CHARSET);
+		out.writeInt(raw.length);
+		out.write(raw);
+	}
+
+
+	private void writeResponse(DataOutputStream out, Response resp) throws IOException {
+		out.writeByte(TAG_MAP);
+		out.writeInt((resp.id != null) ? 3 : 2);
+		this.writeString(out, "success");
+		this.writeValue(out, Boolean.valueOf(resp.success));
+		this.writeString(out, "response");
+		this.writeValue(out, resp.response);
+		if (resp.id != null)
+		{
+			this.writeString(out, "id");
+			this.writeValue(out, resp.id);
+		}
+	}
+
+
+	/**
+	 * Write a value, walking common types directly. Other objects are
+	 * converted through Gson, as the JSON codec would serialize them.
+	 */
+
+	private void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null)
+			out.writeByte(TAG_NULL);
+		else if (value instanceof Boolean)
+			out.writeByte(((Boolean)value).booleanValue() ? TAG_TRUE : TAG_FALSE);
+		else if ((value instanceof Integer) || (value instanceof Short) || (value instanceof Byte))
+		{
+			out.writeByte(TAG_INT);
+			out.writeInt(((Number)value).intValue());
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(TAG_LONG);
+			out.writeLong(((Long)value).longValue());
+		}
+		else if (value instanceof Number)
+		{
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(((Number)value).doubleValue());
+		}
+		else if ((value instanceof String) || (value instanceof Character))
+		{
+			out.writeByte(TAG_STRING);
+			this.writeString(out, value.toString());
+		}
+		else if (value instanceof Response)
+			this.writeResponse(out, (Response)value);
+		else if (value.getClass().isArray())
+		{
+			int count = Array.getLength(value);
+			out.writeByte(TAG_ARRAY);
+			out.writeInt(count);
+			for (int i=0; i<count; i++)
+				this.writeValue(out, Array.get(value, i));
+		}
+		else if (value instanceof Collection)
+		{
+			Collection<?> items = (Collection<?>)value;
+			out.writeByte(TAG_ARRAY);
+			out.writeInt(items.size());
+			for (Object item : items)
+				this.writeValue(out, item);
+		}
+		else if (value instanceof Map)
+		{
+			Map<?, ?> map = (Map<?, ?>)value;
+			out.writeByte(TAG_MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet())
+			{
+				this.writeString(out, String.valueOf(entry.getKey()));
+				this.writeValue(out, entry.getValue());
+			}
+		}
+		else if (value instanceof JsonElement)
+			this.writeJson(out, (JsonElement)value);
+		else
+			this.writeJson(out, JsonCodec.GSON.toJsonTree(value));
+	}
+
+
+	private void writeJson(DataOutputStream out, JsonElement value) throws IOException {
+		if (value.isJsonNull())
+			out.writeByte(TAG_NULL);
+		else if (value.isJsonArray())
+		{
+			JsonArray array = value.getAsJsonArray();
+			out.writeByte(TAG_ARRAY);
+			out.writeInt(array.size());
+			for (int i=0; i<array.size(); i++)
+				this.writeJson(out, array.get(i));
+		}
+		else if (value.isJsonObject())
+		{
+			JsonObject map = value.getAsJsonObject();
+			out.writeByte(TAG_MAP);
+			out.writeInt(map.entrySet().size());
+			for (Map.Entry<String, JsonElement> entry : map.entrySet())
+			{
+				this.writeString(out, entry.getKey());
+				this.writeJson(out, entry.getValue());
+			}
+		}
+		else
+		{
+			JsonPrimitive prim = value.getAsJsonPrimitive();
+			if (prim.isBoolean())
+				this.writeValue(out, Boolean.valueOf(prim.getAsBoolean()));
+			else if (prim.isNumber())
+			{
+				/* Keep integral numbers integral */
+				Number num = prim.getAsNumber();
+				double d = num.doubleValue();
+				if ((d == Math.rint(d)) && !Double.isInfinite(d) && (d >= Long.MIN_VALUE) && (d <= Long.MAX_VALUE))
+				{
+					long l = num.longValue();
+					this.writeValue(out, ((l >= Integer.MIN_VALUE) && (l <= Integer.MAX_VALUE)) ? (Object)Integer.valueOf((int)l) : (Object)Long.valueOf(l));
+				}
+				else
+					this.writeValue(out, Double.valueOf(d));
+			}
+			else
+				this.writeValue(out, prim.getAsString());
+		}
+	}
+}
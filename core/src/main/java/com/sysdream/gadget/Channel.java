@@ -0,0 +1,252 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+
+/**
+ * Channel
+ *
+ * Transport-independent state of a client served asynchronously: protocol
+ * session, requests waiting to be processed, and response writing.
+ * Untagged requests are dispatched one at a time, the next one once the
+ * previous is answered (or has timed out), so that responses are sent
+ * back in order, while tagged (pipelined) requests are processed
+ * concurrently. Transports feed complete frames to onFrame() and implement
+ * sendFrame() to write responses.
+ *
+ * Untagged requests waiting for their turn are capped like tagged ones
+ * (maxInFlight): once the cap is reached, the channel is paused and the
+ * transport stops reading from the client until there is room again,
+ * either through pause() or by waiting in awaitRoom() if it reads with a
+ * thread of its own.
+ *
+ * The reading thread never writes a response, apart from the handshake's
+ * answer: a transport's selector must not wait for a client that does not
+ * read. Responses are written by one thread at a time, the others leaving
+ * theirs to it rather than waiting, so that a slow client only holds the
+ * thread writing to it.
+ */
+
+public abstract class Channel implements FrameSink {
+
+	private final static String TAG = "Channel";
+	private final static int OUT_BUFFER_SIZE = 1024;
+
+	private Dispatcher m_dispatcher;
+	private LinkedList<Request> m_pending = new LinkedList<Request>();
+	private boolean m_busy = false;
+	private int m_max_pending;
+	private boolean m_paused = false;
+	private LinkedList<Response> m_outgoing = new LinkedList<Response>();
+	private boolean m_writing = false;
+	protected Session m_session;
+	protected Dispatcher.Client m_dispatch = new Dispatcher.Client(new Dispatcher.Callback() {
+		public void onResponse(Response resp) {
+			Channel.this.send(resp);
+		}
+	});
+	private Dispatcher.Callback m_send = new Dispatcher.Callback() {
+		public void onResponse(Response resp) {
+			Channel.this.send(resp);
+		}
+	};
+	private Dispatcher.Callback m_ordered = new Dispatcher.Callback() {
+		public void onResponse(Response resp) {
+			Channel.this.send(resp);
+			Channel.this.next();
+		}
+	};
+
+
+	/**
+	 * Constructor
+	 * @param dispatcher the dispatcher running requests
+	 * @param maxFrame the maximum request payload size
+	 * @param maxPending the maximum number of untagged requests waiting
+	 */
+
+	public Channel(Dispatcher dispatcher, int maxFrame, int maxPending) {
+		this.m_dispatcher = dispatcher;
+		this.m_session = new Session(maxFrame);
+		this.m_max_pending = Math.max(1, maxPending);
+	}
+
+
+	/**
+	 * Process a complete frame received from the client. The buffer may be
+	 * reused once this method returns. Never waits for the client.
+	 *
+	 * @param raw buffer holding the payload
+	 * @param offset payload offset
+	 * @param size payload size
+	 */
+
+	public void onFrame(byte[] raw, int offset, int size) throws IOException {
+		/* The first frame may be a protocol handshake */
+		if (this.m_session.isNegotiating())
+		{
+			FrameBuffer frame = new FrameBuffer(OUT_BUFFER_SIZE);
+			if (this.m_session.handshake(raw, offset, size, frame))
+			{
+				/* No response may precede it, so it is sent right away */
+				this.sendFrame(frame, false);
+				return;
+			}
+		}
+		Request req = this.m_session.decodeRequest(raw, offset, size);
+		if (req != null)
+			this.enqueue(req);
+	}
+
+
+	/**
+	 * Queue a request, and dispatch it if no other untagged request is
+	 * being processed. Tagged requests are dispatched right away.
+	 *
+	 * @param req the request to queue
+	 */
+
+	private void enqueue(final Request req) {
+		req.client = this.m_dispatch;
+		if (req.id != null)
+		{
+			Response resp = this.m_dispatcher.trySubmit(this.m_dispatch, req, this.m_send);
+			if (resp != null)
+				this.m_dispatcher.reply(this.m_send, resp);
+			return;
+		}
+
+		boolean pause = false;
+		boolean start = false;
+		synchronized (this) {
+			this.m_pending.add(req);
+			if (!this.m_paused && (this.m_pending.size() >= this.m_max_pending))
+			{
+				this.m_paused = true;
+				pause = true;
+			}
+			if (!this.m_busy)
+			{
+				this.m_busy = true;
+				start = true;
+			}
+		}
+		if (pause)
+			this.pause(true);
+		if (start)
+			this.next();
+	}
+
+
+	/**
+	 * Dispatch the next untagged request, called once the previous one is
+	 * answered. Requests answered right away (rejected) are sent from a
+	 * reply thread, which goes on with the next one.
+	 */
+
+	private void next() {
+		Request req;
+		boolean resume = false;
+		synchronized (this) {
+			req = this.m_pending.poll();
+			if (this.m_paused && (this.m_pending.size() < this.m_max_pending))
+			{
+				this.m_paused = false;
+				resume = true;
+				this.notifyAll();
+			}
+			if (req == null)
+				this.m_busy = false;
+		}
+		if (resume)
+			this.pause(false);
+		if (req == null)
+			return;
+		Response resp = this.m_dispatcher.trySubmit(this.m_dispatch, req, this.m_ordered);
+		if (resp != null)
+			this.m_dispatcher.reply(this.m_ordered, resp);
+	}
+
+
+	/**
+	 * Stop or resume reading from the client, called when the untagged
+	 * requests waiting reach their cap and once there is room again.
+	 * Transports reading from a selector override it, the others wait in
+	 * awaitRoom().
+	 *
+	 * @param paused True to stop reading, false to resume
+	 */
+
+	protected void pause(boolean paused) {
+	}
+
+
+	/**
+	 * Wait until the channel may read again, for transports reading with a
+	 * thread of their own
+	 */
+
+	protected void awaitRoom() throws InterruptedException {
+		synchronized (this) {
+			while (this.m_paused && !this.m_dispatch.isClosed())
+				this.wait();
+		}
+	}
+
+
+	/**
+	 * Encode a response and send its frames, or leave it to the thread
+	 * already writing to this client.
+	 *
+	 * @param resp the response to send
+	 */
+
+	public void send(Response resp) {
+		synchronized (this.m_outgoing) {
+			this.m_outgoing.add(resp);
+			if (this.m_writing)
+				return;
+			this.m_writing = true;
+		}
+
+		/* Chunks of streamed responses must not interleave, hence one writer */
+		while (true) {
+			synchronized (this.m_outgoing) {
+				resp = this.m_outgoing.poll();
+				if (resp == null)
+				{
+					this.m_writing = false;
+					return;
+				}
+			}
+
+			/* Encode into a buffer owned by the transport once sent */
+			FrameBuffer frame = new FrameBuffer(OUT_BUFFER_SIZE);
+			try {
+				this.m_session.writeResponse(resp, frame, this);
+			}
+			catch (IOException e) {
+				Logger.d(TAG, "Response dropped: " + e.getMessage());
+			}
+			catch (RuntimeException e) {
+				/* Do not leave the others' responses unsent */
+				Logger.d(TAG, "Response dropped: " + e);
+			}
+		}
+	}
+
+
+	/**
+	 * Release the session's resources
+	 */
+
+	public void close() {
+		this.m_dispatch.close();
+		this.m_session.close();
+		/* Do not leave the reading thread waiting */
+		synchronized (this) {
+			this.notifyAll();
+		}
+	}
+}
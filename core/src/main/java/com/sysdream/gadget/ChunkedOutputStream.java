@@ -0,0 +1,153 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+
+/**
+ * Chunked output stream
+ *
+ * Receives an encoded response and keeps it in a frame buffer as long as it
+ * fits in one chunk. Once it gets bigger, the response is streamed: each
+ * time the buffer holds a full chunk, it is sent as a frame flagged with
+ * FrameBuffer.MORE_CHUNKS and reused, so memory stays bounded whatever the
+ * response size. When a deflater is given, streamed payloads are
+ * compressed on the fly behind a Session.FLAG_DEFLATE byte.
+ */
+
+public class ChunkedOutputStream extends OutputStream {
+
+	private FrameBuffer m_buf;
+	private FrameSink m_sink;
+	private int m_chunk;
+	private int m_prefix;
+	private Deflater m_deflater;
+	private boolean m_streaming = false;
+	private byte[] m_scratch = null;
+	private byte[] m_single = new byte[1];
+
+
+	/**
+	 * Constructor
+	 * @param buf the frame buffer, possibly already holding a prefix
+	 * @param sink where chunk frames are sent
+	 * @param chunk the maximum chunk payload size
+	 * @param deflater the deflater compressing streamed payloads, null if none
+	 */
+
+	public ChunkedOutputStream(FrameBuffer buf, FrameSink sink, int chunk, Deflater deflater) {
+		this.m_buf = buf;
+		this.m_sink = sink;
+		this.m_chunk = chunk;
+		this.m_prefix = buf.payloadSize();
+		this.m_deflater = deflater;
+	}
+
+
+	/**
+	 * Check if the response overflowed the first chunk
+	 * @return boolean True if chunks have been (or are to be) sent
+	 */
+
+	public boolean isStreaming() {
+		return this.m_streaming;
+	}
+
+
+	@Override
+	public void write(int b) throws IOException {
+		this.m_single[0] = (byte)b;
+		this.write(this.m_single, 0, 1);
+	}
+
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (!this.m_streaming)
+		{
+			if (this.m_buf.payloadSize() + len <= this.m_chunk)
+			{
+				this.m_buf.write(b, off, len);
+				return;
+			}
+			this.startStreaming();
+		}
+
+		if (this.m_deflater != null)
+			this.deflate(b, off, len);
+		else
+			this.emit(b, off, len);
+	}
+
+
+	/**
+	 * Send the last chunk of a streamed response. Does nothing if the
+	 * response fits in a single chunk, it is then left in the buffer.
+	 */
+
+	public void finish() throws IOException {
+		if (!this.m_streaming)
+			return;
+
+		if (this.m_deflater != null)
+		{
+			this.m_deflater.finish();
+			while (!this.m_deflater.finished()) {
+				int n = this.m_deflater.deflate(this.m_scratch);
+				this.emit(this.m_scratch, 0, n);
+			}
+			this.m_deflater.reset();
+		}
+		this.m_sink.sendFrame(this.m_buf, false);
+	}
+
+
+	/**
+	 * Switch to streaming. With compression, the data buffered so far is
+	 * compressed and the payload flag changed.
+	 */
+
+	private void startStreaming() throws IOException {
+		this.m_streaming = true;
+		if (this.m_deflater == null)
+			return;
+
+		this.m_scratch = new byte[Math.max(this.m_chunk, 512)];
+		byte[] buffered = this.m_buf.toByteArray();
+		int start = 4 + this.m_prefix;
+		this.m_buf.reset();
+		this.m_buf.write(Session.FLAG_DEFLATE);
+		this.deflate(buffered, start, buffered.length - start);
+	}
+
+
+	private void deflate(byte[] b, int off, int len) throws IOException {
+		this.m_deflater.setInput(b, off, len);
+		while (!this.m_deflater.needsInput()) {
+			int n = this.m_deflater.deflate(this.m_scratch);
+			this.emit(this.m_scratch, 0, n);
+		}
+	}
+
+
+	/**
+	 * Append data to the current chunk, sending full chunks
+	 */
+
+	private void emit(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int room = this.m_chunk - this.m_buf.payloadSize();
+			if (room <= 0)
+			{
+				this.m_sink.sendFrame(this.m_buf, true);
+				this.m_buf.reset();
+				continue;
+			}
+			int n = Math.min(room, len);
+			this.m_buf.write(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Wire encoding of requests and responses, negotiated per connection.
+ * Implementations must be thread-safe.
+ */
+
+public interface Codec {
+	public String getName();
+	public Request decodeRequest(byte[] buf, int offset, int length);
+	public void encodeResponse(Response resp, OutputStream out) throws IOException;
+}
@@ -0,0 +1,986 @@
+package com.sysdream.gadget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Request dispatcher
+ *
+ * Runs requests on a fixed-size worker pool, so the number of concurrent
+ * calls into remote Fino services stays under control whatever the number
+ * of clients. Requests wait in one bounded queue per target application,
+ * and workers take them from each application in turn, running at most a
+ * few calls per application at once: a slow or busy target keeps part of
+ * the pool, never all of it. The calls of a batch request are queued each
+ * for its own application, and their responses joined once all are in.
+ * Calls to allowlisted methods identical to one in flight (same app,
+ * method and arguments) are not queued: they share its result.
+ *
+ * Requests are further split into two lanes, interactive and bulk, each
+ * application having a queue per lane. Interactive calls always start
+ * before bulk ones, and bulk calls may not take every worker, so an
+ * interactive call never waits for a whole batch of bulk calls to finish.
+ * Clients may also be rate limited, with a token bucket each. When an
+ * application's queue is full, or when a client has too many requests in
+ * flight, the request is answered right away with an error instead of
+ * being queued.
+ *
+ * Every call has a deadline: if no response is ready by then, a timeout
+ * error is sent and the worker is interrupted, unless other calls share
+ * it. Such errors are written by reply threads, so that a client slow to
+ * read delays no other deadline. A client may also cancel one of its
+ * tagged requests, queued or running. Either way its in-flight slot is
+ * released at once, so that a call stuck in a hung target cannot freeze
+ * the session, although the worker stays busy until the remote call
+ * returns.
+ */
+
+public class Dispatcher {
+
+	/**
+	 * Receives the response of an asynchronous request
+	 */
+
+	public interface Callback {
+		public void onResponse(Response resp);
+	}
+
+
+	/**
+	 * Per-client dispatch state
+	 *
+	 * Also lets Gadget push unsolicited responses (events) to the client,
+	 * until the transport closes it.
+	 */
+
+	public static class Client {
+
+		/**
+		 * Notified once the client is closed
+		 */
+
+		public interface Listener {
+			public void onClose(Client client);
+		}
+
+		private AtomicInteger m_in_flight = new AtomicInteger(0);
+		private ConcurrentHashMap<Integer, Call> m_calls = new ConcurrentHashMap<Integer, Call>();
+		private Callback m_push;
+		private volatile boolean m_closed = false;
+		private ArrayList<Listener> m_listeners = new ArrayList<Listener>();
+		private double m_tokens = -1;
+		private long m_refilled = 0;
+
+		/**
+		 * Constructor
+		 * @param push sends pushed responses to the client, null if not supported
+		 */
+
+		public Client(Callback push) {
+			this.m_push = push;
+		}
+
+		public int getInFlight() {
+			return this.m_in_flight.get();
+		}
+
+		/**
+		 * Push an unsolicited response to the client
+		 * @param resp the response to send
+		 * @return boolean False if the client is gone
+		 */
+
+		public boolean push(Response resp) {
+			if (this.m_closed || (this.m_push == null))
+				return false;
+			this.m_push.onResponse(resp);
+			return true;
+		}
+
+		/**
+		 * Mark the client as disconnected, and notify listeners
+		 */
+
+		public void close() {
+			ArrayList<Listener> listeners;
+			synchronized (this) {
+				if (this.m_closed)
+					return;
+				this.m_closed = true;
+				listeners = this.m_listeners;
+				this.m_listeners = null;
+			}
+			for (Listener listener : listeners)
+				listener.onClose(this);
+		}
+
+		/**
+		 * Be notified when the client is closed, right away if already
+		 * closed. A listener is only added once.
+		 * @param listener the listener
+		 */
+
+		public void addListener(Listener listener) {
+			synchronized (this) {
+				if (!this.m_closed)
+				{
+					if (!this.m_listeners.contains(listener))
+						this.m_listeners.add(listener);
+					return;
+				}
+			}
+			listener.onClose(this);
+		}
+
+		public boolean isClosed() {
+			return this.m_closed;
+		}
+
+		/**
+		 * Cancel a tagged request
+		 * @param id the request's ID
+		 * @return boolean False if no such request is pending
+		 */
+
+		public boolean cancel(Integer id) {
+			Call call = this.m_calls.get(id);
+			return (call != null) && call.abort(reject(call.m_req, "Cancelled"));
+		}
+
+		/**
+		 * Take a token from the client's bucket, refilled at rate tokens
+		 * per second up to burst
+		 */
+
+		synchronized boolean take(double rate, int burst) {
+			long now = System.nanoTime();
+			if (this.m_tokens < 0)
+				this.m_tokens = burst;
+			else
+				this.m_tokens = Math.min(burst, this.m_tokens + (now - this.m_refilled) * rate / 1e9);
+			this.m_refilled = now;
+			if (this.m_tokens < 1)
+				return false;
+			this.m_tokens -= 1;
+			return true;
+		}
+	}
+
+
+	/**
+	 * Request being processed, completed exactly once by its worker, its
+	 * deadline or its cancellation. A batch is split into a call per entry,
+	 * its own call only holding the client's in-flight slot and feeding its
+	 * entries to their queues a window at a time.
+	 */
+
+	private class Call implements Runnable {
+		private final Client m_client;
+		private final Request m_req;
+		private final Callback m_cb;
+		private final long m_queued = System.nanoTime();
+		private final long m_deadline;
+		private final AtomicBoolean m_done = new AtomicBoolean(false);
+		private Thread m_worker = null;
+		private final int m_lane;
+		private AppQueue m_queue = null;
+		private final Call m_batch;
+		private Call[] m_entries = null;
+		private int m_next = 0;
+		private int m_slots = 0;
+		private boolean m_fed = false;
+		private String m_key = null;
+		private LinkedList<Call> m_followers = null;
+		private boolean m_landed = false;
+
+		Call(Client client, Request req, Callback cb) {
+			this(client, req, cb, null);
+		}
+
+		Call(Client client, Request req, Callback cb, Call batch) {
+			this.m_client = client;
+			this.m_req = req;
+			this.m_cb = cb;
+			this.m_batch = batch;
+			this.m_lane = (req.priority == Request.BULK) ? BULK_LANE : INTERACTIVE_LANE;
+			long timeout = (req.timeout > 0) ? req.timeout : m_timeout;
+			this.m_deadline = (timeout > 0) ? this.m_queued + timeout * 1000000L : 0;
+		}
+
+		public void run() {
+			synchronized (this) {
+				/* Cancelled or expired while queued, and nobody shares it */
+				if (this.m_done.get() && (this.m_followers == null))
+				{
+					this.m_landed = true;
+					if (this.m_key != null)
+						Dispatcher.this.m_flights.remove(this.m_key, this);
+					return;
+				}
+				this.m_worker = Thread.currentThread();
+			}
+			Metrics.getInstance().record(Metrics.QUEUE, this.m_queued);
+
+			Response resp;
+			try {
+				resp = m_handler.handleRequest(this.m_req);
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+				resp = reject(this.m_req, "Invocation error");
+			}
+			finally {
+				synchronized (this) {
+					this.m_worker = null;
+				}
+				/* Do not leak an abort's interruption to the next task */
+				Thread.interrupted();
+			}
+			this.complete(resp);
+			this.land(resp);
+		}
+
+		/**
+		 * Share the call with an identical one
+		 * @return boolean False if the call is already over
+		 */
+
+		synchronized boolean attach(Call follower) {
+			if (this.m_landed)
+				return false;
+			if (this.m_followers == null)
+				this.m_followers = new LinkedList<Call>();
+			this.m_followers.add(follower);
+			return true;
+		}
+
+		/**
+		 * End the call's flight, answering the calls sharing it with a
+		 * copy of its response
+		 */
+
+		void land(Response resp) {
+			if (this.m_key == null)
+				return;
+			Dispatcher.this.m_flights.remove(this.m_key, this);
+			LinkedList<Call> followers;
+			synchronized (this) {
+				this.m_landed = true;
+				followers = this.m_followers;
+				this.m_followers = null;
+			}
+			if (followers == null)
+				return;
+			for (Call follower : followers)
+			{
+				Response copy = new Response(resp.response, resp.success);
+				copy.id = follower.m_req.id;
+				follower.complete(copy);
+			}
+		}
+
+		/**
+		 * End the flight of a call that will not answer others, so that
+		 * identical calls no longer join it
+		 * @return boolean False if others share the call, which must still run
+		 */
+
+		private boolean ground() {
+			if (this.m_key == null)
+				return true;
+			synchronized (this) {
+				if (this.m_followers != null)
+					return false;
+				this.m_landed = true;
+			}
+			Dispatcher.this.m_flights.remove(this.m_key, this);
+			return true;
+		}
+
+		/**
+		 * Send the response, unless already done
+		 */
+
+		boolean complete(Response resp) {
+			if (!this.finish())
+				return false;
+			this.m_cb.onResponse(resp);
+			return true;
+		}
+
+		/**
+		 * Release the call, unless already done
+		 */
+
+		private boolean finish() {
+			if (!this.m_done.compareAndSet(false, true))
+				return false;
+			Dispatcher.this.m_calls.remove(this);
+			/* A queued call shared by others still runs for them */
+			if (this.ground())
+				Dispatcher.this.unqueue(this);
+			/* A batch's entries hold no slot of their own */
+			if (this.m_batch != null)
+				return true;
+			if (this.m_req.id != null)
+				this.m_client.m_calls.remove(this.m_req.id, this);
+			this.m_client.m_in_flight.decrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Answer before the worker is done, and interrupt it. The answer
+		 * is sent from a reply thread, as aborting threads (the deadline
+		 * timer, a reading thread) must not wait for the client.
+		 */
+
+		boolean abort(Response resp) {
+			if (!this.finish())
+				return false;
+			Dispatcher.this.reply(this.m_cb, resp);
+			synchronized (this) {
+				/* Unless others still wait for its result */
+				if ((this.m_worker != null) && (this.m_followers == null))
+					this.m_worker.interrupt();
+			}
+			if (this.m_entries != null)
+				for (Call entry : this.m_entries)
+					if (entry != null)
+						entry.abort(reject(entry.m_req, (String)resp.response));
+			return true;
+		}
+	}
+
+
+	/**
+	 * Calls waiting for an application in each lane, and the number
+	 * running. The queue is in a lane's ready ring while one of its calls
+	 * in that lane may start.
+	 */
+
+	private static class AppQueue {
+		final String app;
+		final LinkedList<Call>[] pending;
+		final boolean[] ready = new boolean[LANES];
+		int running = 0;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		AppQueue(String app) {
+			this.app = app;
+			this.pending = new LinkedList[LANES];
+			for (int i=0; i<LANES; i++)
+				this.pending[i] = new LinkedList<Call>();
+		}
+
+		boolean isIdle() {
+			for (int i=0; i<LANES; i++)
+				if (this.ready[i] || !this.pending[i].isEmpty())
+					return false;
+			return this.running == 0;
+		}
+	}
+
+
+	/* Lanes, in priority order */
+	private final static int INTERACTIVE_LANE = 0;
+	private final static int BULK_LANE = 1;
+	private final static int LANES = 2;
+
+
+	/* Deadlines are checked at this period (ms) */
+	private final static long TICK = 100;
+
+	private IRequestHandler m_handler;
+	private ThreadPoolExecutor m_pool;
+	private ScheduledThreadPoolExecutor m_timer;
+	private ThreadPoolExecutor m_replies;
+	private ConcurrentHashMap<Call, Call> m_calls = new ConcurrentHashMap<Call, Call>();
+	private ConcurrentHashMap<String, Call> m_flights = new ConcurrentHashMap<String, Call>();
+	private HashSet<String> m_coalesced;
+	private int m_max_in_flight;
+	private long m_timeout;
+
+	/* Per-application queues, each lane's ring of those ready to run a
+	 * call and its number of running calls, all guarded by m_queues */
+	private HashMap<String, AppQueue> m_queues = new HashMap<String, AppQueue>();
+	private LinkedList<AppQueue>[] m_ready;
+	private int[] m_lane_running = new int[LANES];
+	private int[] m_lane_max = new int[LANES];
+	private int m_queued = 0;
+	private int m_drains = 0;
+	private int m_workers;
+	private int m_app_concurrency;
+	private int m_app_queue;
+	private double m_rate;
+	private int m_burst;
+	private final Runnable m_drain = new Runnable() {
+		public void run() {
+			Dispatcher.this.drain();
+		}
+	};
+
+
+	/**
+	 * Constructor
+	 * @param handler the handler building responses
+	 * @param config pool and limits configuration
+	 */
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Dispatcher(IRequestHandler handler, GadgetConfig config) {
+		this.m_handler = handler;
+		this.m_max_in_flight = config.maxInFlight;
+		this.m_timeout = config.callTimeout;
+		this.m_workers = config.workerThreads;
+		this.m_app_concurrency = config.appConcurrency;
+		this.m_app_queue = config.workerQueue;
+		this.m_rate = config.clientRate;
+		this.m_burst = Math.max(1, config.clientBurst);
+		this.m_coalesced = new HashSet<String>(config.coalescedMethods);
+
+		/* Bulk calls leave a worker to interactive ones, unless there is one only */
+		this.m_ready = new LinkedList[LANES];
+		for (int i=0; i<LANES; i++)
+			this.m_ready[i] = new LinkedList<AppQueue>();
+		this.m_lane_max[INTERACTIVE_LANE] = this.m_workers;
+		this.m_lane_max[BULK_LANE] = Math.max(1, Math.min(config.bulkWorkers, this.m_workers - 1));
+		this.m_pool = new ThreadPoolExecutor(config.workerThreads, config.workerThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(config.workerQueue));
+
+		/* Responses that must not be written by the thread producing them */
+		this.m_replies = new ThreadPoolExecutor(config.workerThreads, config.workerThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+
+		/* A single periodic sweep rather than one timer per call, as cancelled
+		 * timers would pile up in the timer's queue until they expire */
+		this.m_timer = new ScheduledThreadPoolExecutor(1);
+		this.m_timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				Dispatcher.this.expire();
+			}
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Process a request asynchronously
+	 * @param client the requesting client
+	 * @param req the request
+	 * @param cb called with the response, possibly from the calling thread if rejected
+	 * @return boolean True if the request has been queued, false if answered right away
+	 */
+
+	public boolean submit(Client client, Request req, Callback cb) {
+		Response resp = this.trySubmit(client, req, cb);
+		if (resp == null)
+			return true;
+		cb.onResponse(resp);
+		return false;
+	}
+
+
+	/**
+	 * Process a request asynchronously, unless it can be answered right
+	 * away: rejections and cancellations are not passed to the callback
+	 * @param client the requesting client
+	 * @param req the request
+	 * @param cb called with the response once processed
+	 * @return Response the immediate response, null if the request has been queued
+	 */
+
+	public Response trySubmit(Client client, Request req, Callback cb) {
+		Call call = new Call(client, req, cb);
+		return this.start(call);
+	}
+
+
+	/**
+	 * Process a request on the worker pool and wait for its response
+	 * @param client the requesting client
+	 * @param req the request
+	 * @return Response the response, or a rejection
+	 */
+
+	public Response call(Client client, Request req) {
+		final Response[] result = new Response[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		Call call = new Call(client, req, new Callback() {
+			public void onResponse(Response resp) {
+				result[0] = resp;
+				done.countDown();
+			}
+		});
+		Response resp = this.start(call);
+		if (resp != null)
+			return resp;
+
+		try {
+			done.await();
+			return result[0];
+		}
+		catch (InterruptedException e) {
+			call.abort(reject(req, "Interrupted"));
+			Thread.currentThread().interrupt();
+			return reject(req, "Interrupted");
+		}
+	}
+
+
+	/**
+	 * Queue a call on the worker pool
+	 * @return Response the immediate response, null if queued
+	 */
+
+	private Response start(Call call) {
+		Request req = call.m_req;
+		Client client = call.m_client;
+		if (req.malformed)
+			return reject(req, "Bad request");
+
+		/* Cancellations must not wait behind the calls they cancel */
+		if ((req.app == null) && "cancel".equals(req.method))
+		{
+			if ((req.parameters.length != 1) || !(req.parameters[0] instanceof Integer))
+				return reject(req, "Bad request");
+			boolean cancelled = client.cancel((Integer)req.parameters[0]);
+			if (cancelled)
+				Metrics.getInstance().cancelled();
+			Response resp = new Response(Boolean.valueOf(cancelled), true);
+			resp.id = req.id;
+			return resp;
+		}
+
+		if ((this.m_rate > 0) && !client.take(this.m_rate, this.m_burst))
+		{
+			Metrics.getInstance().throttled();
+			return reject(req, "Rate limit exceeded");
+		}
+		if (!this.acquire(client))
+			return reject(req, "Too many requests in flight");
+		if (req.batch != null)
+			return this.split(call);
+		if (req.id != null)
+			client.m_calls.put(req.id, call);
+		if (call.m_deadline != 0)
+			this.m_calls.put(call, call);
+		if (this.join(call))
+			return null;
+		if (this.schedule(call))
+			return null;
+
+		/* Release the call without sending its response */
+		call.land(reject(req, "Server busy"));
+		if (!call.m_done.compareAndSet(false, true))
+			return null;
+		this.m_calls.remove(call);
+		if (req.id != null)
+			client.m_calls.remove(req.id, call);
+		client.m_in_flight.decrementAndGet();
+		return reject(req, "Server busy");
+	}
+
+
+	/**
+	 * Share an identical call in flight, or lead the flight of the calls
+	 * that will share this one. Only calls of the allowlisted methods are
+	 * shared, as they must not have side effects.
+	 * @return boolean True if the call shares another one, and must not be queued
+	 */
+
+	private boolean join(Call call) {
+		Request req = call.m_req;
+		if ((req.target == null) || (req.app == null) || !this.m_coalesced.contains(req.method))
+			return false;
+		String key = ResultCache.keyOf(req);
+		while (true) {
+			Call leader = this.m_flights.putIfAbsent(key, call);
+			if (leader == null)
+			{
+				call.m_key = key;
+				return false;
+			}
+			if (leader.attach(call))
+			{
+				Metrics.getInstance().coalesced();
+				return true;
+			}
+			/* Over meanwhile */
+			this.m_flights.remove(key, leader);
+		}
+	}
+
+
+	/**
+	 * Queue each entry of a batch for its own application, the batch
+	 * being answered once every entry is. At most a queue's worth of
+	 * entries are queued at once, the next ones as earlier ones are done,
+	 * so that a batch fits whatever its size.
+	 * @return Response the immediate response, null if queued
+	 */
+
+	private Response split(final Call call) {
+		Request req = call.m_req;
+		final Response[] results = new Response[req.batch.length];
+		/* One more than the entries, so that the batch is not answered
+		 * from the callback while entries are still being queued */
+		final AtomicInteger left = new AtomicInteger(results.length + 1);
+		final Call[] entries = new Call[results.length];
+		for (int i=0; i<entries.length; i++)
+		{
+			Request entry = req.batch[i];
+			if (entry == null)
+			{
+				results[i] = new Response("Bad request", false);
+				left.decrementAndGet();
+				continue;
+			}
+			entry.client = req.client;
+			entry.priority = req.priority;
+			if (entry.timeout == 0)
+				entry.timeout = req.timeout;
+			final int index = i;
+			entries[i] = new Call(call.m_client, entry, new Callback() {
+				public void onResponse(Response resp) {
+					results[index] = new Response(resp.response, resp.success);
+					Dispatcher.this.feed(call, entries[index]);
+					if (left.decrementAndGet() == 0)
+						call.complete(joined(call.m_req, results));
+				}
+			}, call);
+		}
+		call.m_entries = entries;
+		call.m_slots = this.m_app_queue;
+		if (req.id != null)
+			call.m_client.m_calls.put(req.id, call);
+
+		/* Entries expire from the batch's start, queued or not */
+		for (int i=0; i<entries.length; i++)
+			if ((entries[i] != null) && (entries[i].m_deadline != 0))
+				this.m_calls.put(entries[i], entries[i]);
+		this.feed(call, null);
+		if ((left.decrementAndGet() != 0) || !call.finish())
+			return null;
+		return joined(req, results);
+	}
+
+
+	/**
+	 * Queue a batch's next entries while it has free slots
+	 * @param batch the batch's call
+	 * @param done the entry just answered, freeing its slot, or null
+	 */
+
+	private void feed(Call batch, Call done) {
+		synchronized (batch) {
+			if ((done != null) && done.m_fed)
+				batch.m_slots++;
+		}
+		while (true) {
+			Call entry = null;
+			synchronized (batch) {
+				while ((entry == null) && (batch.m_slots > 0) && (batch.m_next < batch.m_entries.length)) {
+					Call next = batch.m_entries[batch.m_next++];
+					if ((next == null) || next.m_done.get())
+						continue;
+					next.m_fed = true;
+					batch.m_slots--;
+					entry = next;
+				}
+			}
+			if (entry == null)
+				return;
+			/* Answered from a reply thread, not to feed the batch recursively */
+			if (!this.schedule(entry) && entry.finish())
+				this.reply(entry.m_cb, reject(entry.m_req, "Server busy"));
+		}
+	}
+
+
+	/**
+	 * Build a batch's response from its entries' ones
+	 */
+
+	private static Response joined(Request req, Response[] results) {
+		Response resp = new Response(results, true);
+		resp.id = req.id;
+		return resp;
+	}
+
+
+	/**
+	 * Queue a call for its application and lane, and start a drain if all
+	 * running ones may be busy
+	 * @return boolean False if the application's queue is full
+	 */
+
+	private boolean schedule(Call call) {
+		String app = queueOf(call.m_req);
+		synchronized (this.m_queues) {
+			AppQueue queue = this.m_queues.get(app);
+			if (queue == null)
+			{
+				queue = new AppQueue(app);
+				this.m_queues.put(app, queue);
+			}
+			LinkedList<Call> pending = queue.pending[call.m_lane];
+			/* Batches bound their own queued entries, see split() */
+			if ((call.m_batch == null) && (pending.size() >= this.m_app_queue))
+				return false;
+			pending.add(call);
+			call.m_queue = queue;
+			this.m_queued++;
+			this.ready(queue);
+
+			/* Running drains loop until no queue is ready, and if the call's
+			 * application or lane is at its cap the drain of a running call
+			 * will take it */
+			if (!queue.ready[call.m_lane] || (this.m_drains >= this.m_workers))
+				return true;
+			this.m_drains++;
+		}
+		try {
+			this.m_pool.execute(this.m_drain);
+			return true;
+		}
+		catch (RejectedExecutionException e) {
+			/* Pool saturated by other tasks, leave the call to another drain if any */
+			synchronized (this.m_queues) {
+				this.m_drains--;
+				if (this.m_drains > 0)
+					return true;
+				this.unqueue(call);
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Worker side: run calls until none may start, taking them from the
+	 * interactive lane first, and within a lane from each ready
+	 * application in turn
+	 */
+
+	private void drain() {
+		Call call = null;
+		while (true) {
+			synchronized (this.m_queues) {
+				if (call != null)
+				{
+					AppQueue queue = this.m_queues.get(queueOf(call.m_req));
+					queue.running--;
+					this.m_lane_running[call.m_lane]--;
+					this.ready(queue);
+					this.release(queue);
+				}
+				call = this.next();
+				if (call == null)
+				{
+					this.m_drains--;
+					return;
+				}
+			}
+			call.run();
+		}
+	}
+
+
+	/**
+	 * Take the next call that may start. Must hold m_queues.
+	 * @return Call the call, null if none
+	 */
+
+	private Call next() {
+		for (int lane=0; lane<LANES; lane++)
+		{
+			if (this.m_lane_running[lane] >= this.m_lane_max[lane])
+				continue;
+			while (true) {
+				AppQueue queue = this.m_ready[lane].poll();
+				if (queue == null)
+					break;
+				queue.ready[lane] = false;
+				/* At its cap through another lane, ready() puts it back */
+				if (queue.running >= this.m_app_concurrency)
+					continue;
+
+				Call call = queue.pending[lane].removeFirst();
+				call.m_queue = null;
+				this.m_queued--;
+				queue.running++;
+				this.m_lane_running[lane]++;
+				/* Back at the end of the ring if another call may start */
+				this.ready(queue);
+				return call;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Add a queue to the ready ring of each lane where one of its calls
+	 * may start. Must hold m_queues.
+	 */
+
+	private void ready(AppQueue queue) {
+		if (queue.running >= this.m_app_concurrency)
+			return;
+		for (int lane=0; lane<LANES; lane++)
+		{
+			if (queue.ready[lane] || queue.pending[lane].isEmpty())
+				continue;
+			queue.ready[lane] = true;
+			this.m_ready[lane].add(queue);
+		}
+	}
+
+
+	/**
+	 * Get the name of a request's queue: its application, Gadget's own
+	 * requests sharing a queue (batches are split by application)
+	 */
+
+	private static String queueOf(Request req) {
+		return (req.app != null) ? req.app : "";
+	}
+
+
+	/**
+	 * Forget an application's queue once idle. Must hold m_queues.
+	 */
+
+	private void release(AppQueue queue) {
+		if (queue.isIdle())
+			this.m_queues.remove(queue.app);
+	}
+
+
+	/**
+	 * Remove a call completed while still queued (timed out or cancelled),
+	 * so that it does not hold a place in its application's queue
+	 */
+
+	private void unqueue(Call call) {
+		synchronized (this.m_queues) {
+			AppQueue queue = call.m_queue;
+			if (queue == null)
+				return;
+			LinkedList<Call> pending = queue.pending[call.m_lane];
+			pending.remove(call);
+			call.m_queue = null;
+			this.m_queued--;
+			if (queue.ready[call.m_lane] && pending.isEmpty())
+			{
+				this.m_ready[call.m_lane].remove(queue);
+				queue.ready[call.m_lane] = false;
+			}
+			this.release(queue);
+		}
+	}
+
+
+	/**
+	 * Answer the calls whose deadline has passed
+	 */
+
+	private void expire() {
+		long now = System.nanoTime();
+		for (Call call : this.m_calls.keySet())
+		{
+			if ((now - call.m_deadline >= 0) && call.abort(reject(call.m_req, "Timeout")))
+				Metrics.getInstance().timedOut();
+		}
+	}
+
+
+	/**
+	 * Send a response from a reply thread, for threads that must never
+	 * block on a client, such as a transport's selector
+	 * @param cb the callback to pass the response to
+	 * @param resp the response
+	 */
+
+	public void reply(final Callback cb, final Response resp) {
+		try {
+			this.m_replies.execute(new Runnable() {
+				public void run() {
+					cb.onResponse(resp);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			/* Shut down, nobody to answer */
+		}
+	}
+
+
+	/**
+	 * Run a task on the worker pool
+	 * @param task the task to run
+	 * @throws RejectedExecutionException if the pool is saturated
+	 */
+
+	public void execute(Runnable task) {
+		this.m_pool.execute(task);
+	}
+
+
+	/**
+	 * Get the number of requests waiting for a worker
+	 * @return int the queue depth
+	 */
+
+	public int getQueueDepth() {
+		synchronized (this.m_queues) {
+			return this.m_queued + this.m_pool.getQueue().size();
+		}
+	}
+
+
+	/**
+	 * Stop workers
+	 */
+
+	public void shutdown() {
+		this.m_timer.shutdownNow();
+		this.m_pool.shutdownNow();
+		this.m_replies.shutdownNow();
+	}
+
+
+	private boolean acquire(Client client) {
+		if (client.m_in_flight.incrementAndGet() > this.m_max_in_flight)
+		{
+			client.m_in_flight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Build a rejection response
+	 * @param req the rejected request
+	 * @param reason the error message
+	 * @return Response the tagged error response
+	 */
+
+	public static Response reject(Request req, String reason) {
+		Response resp = new Response(reason, false);
+		resp.id = req.id;
+		return resp;
+	}
+}
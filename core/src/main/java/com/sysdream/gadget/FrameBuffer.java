@@ -0,0 +1,171 @@
+package com.sysdream.gadget;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+
+/**
+ * Frame buffer
+ *
+ * Growable output buffer reserving room for the 4-byte frame size, so an
+ * encoder can write a payload directly behind the header and the whole
+ * frame be sent without any intermediate copy. Meant to be reused across
+ * responses through reset().
+ */
+
+public class FrameBuffer extends ByteArrayOutputStream {
+
+	private final static int HEADER_SIZE = 4;
+
+	/* Set in the size header of every chunk of a streamed response but the last */
+	public final static int MORE_CHUNKS = 0x80000000;
+	private int m_initial;
+
+
+	/**
+	 * Constructor
+	 * @param size initial capacity
+	 */
+
+	public FrameBuffer(int size) {
+		super(size);
+		this.m_initial = size;
+		this.count = HEADER_SIZE;
+	}
+
+
+	/**
+	 * Discard the current payload, keeping the allocated memory
+	 */
+
+	@Override
+	public synchronized void reset() {
+		this.count = HEADER_SIZE;
+	}
+
+
+	/**
+	 * Release memory if a previous payload made the buffer grow past a limit
+	 * @param max maximum capacity to keep
+	 */
+
+	public synchronized void trim(int max) {
+		if (this.buf.length > max)
+			this.buf = new byte[this.m_initial];
+		this.count = HEADER_SIZE;
+	}
+
+
+	/**
+	 * Get the payload size
+	 * @return int the number of bytes written since the last reset
+	 */
+
+	public synchronized int payloadSize() {
+		return this.count - HEADER_SIZE;
+	}
+
+
+	/**
+	 * Overwrite an already written payload byte
+	 * @param offset payload offset (0 being the first byte after the header)
+	 * @param value the new value
+	 */
+
+	public synchronized void setByte(int offset, byte value) {
+		this.buf[HEADER_SIZE + offset] = value;
+	}
+
+
+	/**
+	 * Compress the end of the payload in place
+	 * @param offset payload offset (0 being the first byte after the header) of the data to compress
+	 * @param deflater the deflater to use, reset before returning
+	 */
+
+	public synchronized void deflate(int offset, Deflater deflater) {
+		int start = HEADER_SIZE + offset;
+		deflater.setInput(this.buf, start, this.count - start);
+		deflater.finish();
+
+		/* Compress into a separate buffer, then copy back behind the prefix */
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, (this.count - start) / 2));
+		byte[] chunk = new byte[4096];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			compressed.write(chunk, 0, n);
+		}
+		this.count = start;
+		try {
+			compressed.writeTo(this);
+		}
+		catch (IOException e) {
+			/* Cannot happen, writing to memory */
+		}
+		deflater.reset();
+	}
+
+
+	/**
+	 * Write the frame (header and payload) to a stream
+	 * @param out the output stream
+	 */
+
+	public synchronized void writeFrame(OutputStream out) throws IOException {
+		this.writeFrame(out, false);
+	}
+
+
+	/**
+	 * Write the frame (header and payload) to a stream
+	 * @param out the output stream
+	 * @param more True if this frame is a chunk followed by others
+	 */
+
+	public synchronized void writeFrame(OutputStream out, boolean more) throws IOException {
+		this.writeHeader(more);
+		out.write(this.buf, 0, this.count);
+	}
+
+
+	/**
+	 * Wrap the frame (header and payload) into a ByteBuffer, without copy.
+	 * The buffer must not be reused while the returned ByteBuffer is in use.
+	 * @return ByteBuffer the frame
+	 */
+
+	public synchronized ByteBuffer toFrame() {
+		this.writeHeader(false);
+		return ByteBuffer.wrap(this.buf, 0, this.count);
+	}
+
+
+	/**
+	 * Copy the frame (header and payload) into a new ByteBuffer, leaving
+	 * this buffer free to be reused.
+	 * @param more True if this frame is a chunk followed by others
+	 * @return ByteBuffer the frame
+	 */
+
+	public synchronized ByteBuffer copyFrame(boolean more) {
+		this.writeHeader(more);
+		ByteBuffer frame = ByteBuffer.allocate(this.count);
+		frame.put(this.buf, 0, this.count);
+		frame.flip();
+		return frame;
+	}
+
+
+	private void writeHeader(boolean more) {
+		int size = this.count - HEADER_SIZE;
+		if (more)
+			size |= MORE_CHUNKS;
+		this.buf[0] = (byte)(size >>> 24);
+		this.buf[1] = (byte)(size >>> 16);
+		this.buf[2] = (byte)(size >>> 8);
+		this.buf[3] = (byte)size;
+	}
+}
@@ -0,0 +1,93 @@
+package com.sysdream.gadget;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+
+/**
+ * Frame reader
+ *
+ * Reads 4-byte size prefixed frames from a buffered stream, coping with
+ * partial reads of both the header and the payload. The receive buffer is
+ * reused from one frame to the next.
+ */
+
+public class FrameReader {
+
+	private final static int BUFFER_SIZE = 8192;
+	private final static int RECV_BUFFER_MAX = 256*1024;
+
+	private InputStream m_in;
+	private int m_max;
+	private byte[] m_header = new byte[4];
+	private byte[] m_buf = new byte[BUFFER_SIZE];
+
+
+	/**
+	 * Constructor
+	 * @param in the stream to read from
+	 * @param max the maximum frame size accepted
+	 */
+
+	public FrameReader(InputStream in, int max) {
+		this.m_in = new BufferedInputStream(in, BUFFER_SIZE);
+		this.m_max = max;
+	}
+
+
+	/**
+	 * Read the next frame. Its payload is available from getBuffer() until
+	 * the next call.
+	 *
+	 * @return int the payload size, -1 if the stream ended between two frames
+	 * @throws ProtocolException if the frame is bigger than allowed
+	 * @throws EOFException if the stream ended within a frame
+	 */
+
+	public int readFrame() throws IOException {
+		if (!this.readFully(this.m_header, 4, true))
+			return -1;
+
+		int size = ((this.m_header[0] & 0xff) << 24) | ((this.m_header[1] & 0xff) << 16)
+				| ((this.m_header[2] & 0xff) << 8) | (this.m_header[3] & 0xff);
+		if ((size < 0) || (size > this.m_max))
+			throw new ProtocolException("Bad frame size " + size);
+		long start = System.nanoTime();
+
+		/* Reuse the receive buffer, releasing it after an unusually big frame */
+		if ((size > this.m_buf.length) || ((this.m_buf.length > RECV_BUFFER_MAX) && (size <= BUFFER_SIZE)))
+			this.m_buf = new byte[Math.max(size, BUFFER_SIZE)];
+		this.readFully(this.m_buf, size, false);
+		Metrics.getInstance().record(Metrics.READ, start);
+		return size;
+	}
+
+
+	/**
+	 * Get the receive buffer
+	 * @return byte[] the buffer holding the last frame's payload
+	 */
+
+	public byte[] getBuffer() {
+		return this.m_buf;
+	}
+
+
+	private boolean readFully(byte[] buf, int size, boolean header) throws IOException {
+		int read = 0;
+		while (read < size) {
+			int got = this.m_in.read(buf, read, size - read);
+			if (got < 0)
+			{
+				if (header && (read == 0))
+					return false;
+				throw new EOFException("Truncated frame");
+			}
+			read += got;
+		}
+		return true;
+	}
+}
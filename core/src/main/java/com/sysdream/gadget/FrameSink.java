@@ -0,0 +1,24 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+
+
+/**
+ * Destination of the frames of a response. A response is sent as one
+ * frame, or when streamed as several chunk frames, every one but the last
+ * being flagged with more.
+ */
+
+public interface FrameSink {
+
+	/**
+	 * Send a frame. While more is true, the buffer is reset and reused for
+	 * the next chunk once this call returns; the last frame's buffer is
+	 * left untouched.
+	 *
+	 * @param frame the frame to send
+	 * @param more True if other chunks of the same response follow
+	 */
+
+	public void sendFrame(FrameBuffer frame, boolean more) throws IOException;
+}
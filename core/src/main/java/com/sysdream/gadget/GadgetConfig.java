@@ -0,0 +1,95 @@
+package com.sysdream.gadget;
+
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Gadget configuration
+ *
+ * Tunables of the RPC server, with their default value. On Android, they
+ * are loaded from shared preferences by GadgetPreferences.
+ */
+
+public class GadgetConfig {
+
+	/* Maximum size of a request frame (and of its inflated payload) */
+	public int maxFrameSize = 16*1024*1024;
+
+	/* Worker pool running requests, and the bound of each application's
+	 * request queue (also of the pool's queue of internal tasks) */
+	public int workerThreads = 4;
+	public int workerQueue = 64;
+
+	/* Maximum number of concurrent calls to a single application */
+	public int appConcurrency = 2;
+
+	/* Maximum number of workers running bulk (low priority) calls, at
+	 * most workerThreads - 1 so that interactive calls always find one */
+	public int bulkWorkers = 3;
+
+	/* Per-client rate limit (requests per second, 0 for none) and burst */
+	public double clientRate = 0;
+	public int clientBurst = 32;
+
+	/* Maximum number of requests a single client may have in flight */
+	public int maxInFlight = 16;
+
+	/* Deadline of a call (ms), including its wait for a worker; 0 for none.
+	 * Requests may set their own with a "timeout" field */
+	public long callTimeout = 30000;
+
+	/* How long a response may wait for a client to read the previous ones
+	 * (ms) before the client is disconnected; 0 to wait forever */
+	public long writeTimeout = 10000;
+
+	/* Maximum number of simultaneously connected clients */
+	public int maxClients = 32;
+
+	/* Fino methods whose results are cached (comma-separated in preferences),
+	 * and the cache size budget in bytes */
+	public Set<String> cacheableMethods = new HashSet<String>();
+	public long cacheMaxBytes = 4*1024*1024;
+
+	/* Subscriptions: default and minimum polling intervals (ms), and maximum
+	 * number of subscriptions per client */
+	public int pollInterval = 1000;
+	public int minPollInterval = 250;
+	public int maxSubscriptions = 16;
+
+	/* How long connectApp waits for the target's service to be bound (ms) */
+	public long bindTimeout = 5000;
+
+	/* Packages bound as soon as the service is created (comma-separated in
+	 * preferences), so that their first call does not wait for the binding */
+	public Set<String> prebindApps = new HashSet<String>();
+
+	/* Fino methods whose identical calls (same app, method and arguments)
+	 * share the result of the one in flight instead of calling again
+	 * (comma-separated in preferences). They must not have side effects */
+	public Set<String> coalescedMethods = new HashSet<String>();
+
+	/* Name of the local (UNIX domain) socket, in the abstract namespace */
+	public String localSocketName = "gadget";
+
+
+	/**
+	 * Parse a comma-separated list
+	 * @param value the list, may be null
+	 * @param defaultValue returned if value is null
+	 * @return Set<String> the non-empty items
+	 */
+
+	public static Set<String> parseList(String value, Set<String> defaultValue) {
+		if (value == null)
+			return defaultValue;
+		HashSet<String> items = new HashSet<String>();
+		for (String item : value.split(","))
+		{
+			item = item.trim();
+			if (item.length() > 0)
+				items.add(item);
+		}
+		return items;
+	}
+}
@@ -0,0 +1,115 @@
+package com.sysdream.gadget;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latency histogram
+ *
+ * Fixed-bucket histogram of durations in microseconds, recorded without
+ * allocating or locking. Buckets are log-linear: each power of two is
+ * split into 8 sub-buckets, so values are known within 12.5% up to about
+ * 19 hours; longer values are clamped into the last bucket.
+ */
+
+public class Histogram {
+
+	private final static int SUB_BITS = 3;
+	private final static int SUB_BUCKETS = 1 << SUB_BITS;
+	private final static int MAX_EXPONENT = 35;
+	private final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong m_count = new AtomicLong(0);
+	private AtomicLong m_sum = new AtomicLong(0);
+	private AtomicLong m_max = new AtomicLong(0);
+
+
+	/**
+	 * Record a duration
+	 * @param nanos the duration in nanoseconds
+	 */
+
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		this.m_counts.incrementAndGet(indexOf(micros));
+		this.m_count.incrementAndGet();
+		this.m_sum.addAndGet(micros);
+		long max = this.m_max.get();
+		while ((micros > max) && !this.m_max.compareAndSet(max, micros))
+			max = this.m_max.get();
+	}
+
+
+	/**
+	 * Get the number of recorded values
+	 * @return long the count
+	 */
+
+	public long getCount() {
+		return this.m_count.get();
+	}
+
+
+	/**
+	 * Get a percentile
+	 * @param percentile the percentile, between 0 and 100
+	 * @return long the upper bound of the percentile's bucket, in microseconds
+	 */
+
+	public long getPercentile(double percentile) {
+		long count = this.m_count.get();
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++)
+		{
+			seen += this.m_counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), this.m_max.get());
+		}
+		return this.m_max.get();
+	}
+
+
+	/**
+	 * Summarize the histogram
+	 * @return Map<String, Object> count, mean, p50, p90, p99 and max, in microseconds
+	 */
+
+	public Map<String, Object> snapshot() {
+		LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>();
+		long count = this.m_count.get();
+		stats.put("count", Long.valueOf(count));
+		stats.put("mean_us", Long.valueOf((count > 0) ? this.m_sum.get() / count : 0));
+		stats.put("p50_us", Long.valueOf(this.getPercentile(50)));
+		stats.put("p90_us", Long.valueOf(this.getPercentile(90)));
+		stats.put("p99_us", Long.valueOf(this.getPercentile(99)));
+		stats.put("max_us", Long.valueOf(this.m_max.get()));
+		return stats;
+	}
+
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,12 @@
+package com.sysdream.gadget;
+
+
+/**
+ * Common interface of Gadget's server threads, whatever the mode used.
+ */
+
+public interface IGadgetServer {
+	public void start();
+	public void kill();
+	public boolean isRunning();
+}
@@ -0,0 +1,11 @@
+package com.sysdream.gadget;
+
+
+/**
+ * Builds the response of a request. Called from worker threads, so
+ * implementations must be thread-safe.
+ */
+
+public interface IRequestHandler {
+	public Response handleRequest(Request req);
+}
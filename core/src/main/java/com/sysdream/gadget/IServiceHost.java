@@ -0,0 +1,77 @@
+package com.sysdream.gadget;
+
+
+/**
+ * Platform side of request handling: binds the target applications'
+ * inspection services and lists the applications embedding one. Services
+ * are opaque objects implementing the remote interface installed in the
+ * default MethodTable. Called from worker threads, so implementations
+ * must be thread-safe.
+ */
+
+public interface IServiceHost {
+
+	/**
+	 * Get an application's bound service
+	 * @param app the application's package
+	 * @return Object the service, null if not bound
+	 */
+
+	public Object getService(String app);
+
+	/**
+	 * Bind an application's service, and wait for it
+	 * @param app the application's package
+	 * @param timeout how long to wait, in milliseconds
+	 * @return Object the service, null if not bound in time
+	 */
+
+	public Object connect(String app, long timeout) throws InterruptedException;
+
+	/**
+	 * Check if a call failed because its service died
+	 * @param error the exception thrown by the remote method
+	 * @return boolean True if the service is gone and may be rebound
+	 */
+
+	public boolean isDead(Throwable error);
+
+	/**
+	 * Forget a service that died, so that connect() binds it again
+	 * @param app the application's package
+	 * @param service the dead service
+	 */
+
+	public void markDead(String app, Object service);
+
+	/**
+	 * Check if an application's service died and was not bound again
+	 * @param app the application's package
+	 * @return boolean True if the service is dead
+	 */
+
+	public boolean hasDied(String app);
+
+	/**
+	 * Get the applications embedding an inspection service
+	 * @return String[] the sorted package names
+	 */
+
+	public String[] getApps();
+
+	/**
+	 * Push application list changes to a client until it unsubscribes
+	 * @param client the client to notify
+	 * @param id the ID pushed responses carry
+	 */
+
+	public void subscribeApps(Dispatcher.Client client, Integer id);
+
+	/**
+	 * Stop pushing application list changes to a client
+	 * @param client the client
+	 * @return boolean True if it was subscribed
+	 */
+
+	public boolean unsubscribeApps(Dispatcher.Client client);
+}
@@ -0,0 +1,96 @@
+package com.sysdream.gadget;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+
+/**
+ * JSON codec
+ *
+ * Default encoding, used by legacy clients.
+ * Reads requests straight from frame bytes and writes responses straight
+ * to an output stream, without intermediate String or byte array. Gson
+ * instances are thread-safe, so a single codec is shared by all clients.
+ */
+
+public class JsonCodec implements Codec {
+
+	public final static Gson GSON = new Gson();
+	private final static String CHARSET = "UTF-8";
+	private final static JsonCodec instance = new JsonCodec();
+
+
+	/**
+	 * Retrieve the shared codec
+	 * @return JsonCodec the shared instance
+	 */
+
+	public static JsonCodec getInstance() {
+		return instance;
+	}
+
+
+	public String getName() {
+		return "json";
+	}
+
+
+	/**
+	 * Decode a request from a frame's payload
+	 * @param buf buffer holding the payload
+	 * @param offset payload offset
+	 * @param length payload size
+	 * @return Request the request, null if malformed
+	 */
+
+	public Request decodeRequest(byte[] buf, int offset, int length) {
+		try {
+			return Request.fromJsonTree(parse(buf, offset, length));
+		}
+		catch (IOException e) {
+			return null;
+		}
+		catch (RuntimeException e) {
+			/* Syntax error, return null */
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+
+	/**
+	 * Parse a frame's JSON payload straight from its bytes
+	 * @param buf buffer holding the payload
+	 * @param offset payload offset
+	 * @param length payload size
+	 * @return JsonElement the parsed tree
+	 */
+
+	static JsonElement parse(byte[] buf, int offset, int length) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(
+				new ByteArrayInputStream(buf, offset, length), CHARSET));
+		return JsonParser.parseReader(reader);
+	}
+
+
+	/**
+	 * Encode a response
+	 * @param resp the response to encode
+	 * @param out the stream to write to
+	 */
+
+	public void encodeResponse(Response resp, OutputStream out) throws IOException {
+		JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, CHARSET));
+		GSON.toJson(resp, Response.class, writer);
+		writer.flush();
+	}
+}
@@ -0,0 +1,53 @@
+package com.sysdream.gadget;
+
+
+/**
+ * Logger
+ *
+ * Debug logging of the RPC core, which must not depend on android.util.Log
+ * so that it runs on a plain JVM. Messages go to standard error until the
+ * host installs its own sink (GadgetService forwards them to logcat).
+ */
+
+public class Logger {
+
+	/**
+	 * Receives log messages
+	 */
+
+	public interface Sink {
+		public void d(String tag, String message);
+	}
+
+
+	private final static Sink STDERR = new Sink() {
+		public void d(String tag, String message) {
+			System.err.println(tag + ": " + message);
+		}
+	};
+
+	private static volatile Sink s_sink = STDERR;
+
+
+	/**
+	 * Install a sink
+	 * @param sink the sink, null to drop every message
+	 */
+
+	public static void setSink(Sink sink) {
+		s_sink = sink;
+	}
+
+
+	/**
+	 * Log a debug message
+	 * @param tag the message's source
+	 * @param message the message
+	 */
+
+	public static void d(String tag, String message) {
+		Sink sink = s_sink;
+		if (sink != null)
+			sink.d(tag, message);
+	}
+}
@@ -0,0 +1,121 @@
+package com.sysdream.gadget;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Method dispatch table
+ *
+ * Resolves the methods of a remote interface once, indexed by name and
+ * arity, so that parsing and dispatching a request does not need to scan
+ * the interface through reflection. The table is read-only once built and
+ * can be shared between threads.
+ */
+
+public class MethodTable {
+
+	/**
+	 * Resolved method, along with its parameter types (Method.getParameterTypes()
+	 * returns a fresh copy on each call).
+	 */
+
+	public static class Entry {
+		public final Method method;
+		public final Class<?>[] paramTypes;
+
+		public Entry(Method method) {
+			this.method = method;
+			this.paramTypes = method.getParameterTypes();
+		}
+	}
+
+	/* Table used to parse requests, installed by the host */
+	private static volatile MethodTable s_default = new MethodTable(Object.class);
+
+	/* name -> candidates indexed by arity */
+	private HashMap<String, Entry[][]> m_entries = new HashMap<String, Entry[][]>();
+
+
+	/**
+	 * Constructor
+	 * @param iface the interface whose public methods are indexed
+	 */
+
+	public MethodTable(Class<?> iface) {
+		HashMap<String, ArrayList<Entry>> byName = new HashMap<String, ArrayList<Entry>>();
+		for (Method m : iface.getMethods())
+		{
+			/* Skip access checks on each call */
+			try {
+				m.setAccessible(true);
+			}
+			catch (SecurityException e) {
+			}
+			ArrayList<Entry> list = byName.get(m.getName());
+			if (list == null)
+			{
+				list = new ArrayList<Entry>();
+				byName.put(m.getName(), list);
+			}
+			list.add(new Entry(m));
+		}
+
+		/* Group overloads by arity */
+		for (String name : byName.keySet())
+		{
+			ArrayList<Entry> list = byName.get(name);
+			int max = 0;
+			for (Entry e : list)
+				max = Math.max(max, e.paramTypes.length);
+			Entry[][] byArity = new Entry[max + 1][];
+			for (int arity=0; arity<=max; arity++)
+			{
+				ArrayList<Entry> candidates = new ArrayList<Entry>();
+				for (Entry e : list)
+					if (e.paramTypes.length == arity)
+						candidates.add(e);
+				if (candidates.size() > 0)
+					byArity[arity] = candidates.toArray(new Entry[candidates.size()]);
+			}
+			this.m_entries.put(name, byArity);
+		}
+	}
+
+
+	/**
+	 * Find the methods matching a name and a number of parameters
+	 * @param name the method name
+	 * @param arity the number of parameters
+	 * @return Entry[] the candidate methods, null if none
+	 */
+
+	public Entry[] lookup(String name, int arity) {
+		Entry[][] byArity = this.m_entries.get(name);
+		if ((byArity == null) || (arity < 0) || (arity >= byArity.length))
+			return null;
+		return byArity[arity];
+	}
+
+
+	/**
+	 * Retrieve the table requests are resolved against (Fino's
+	 * IInspectionService on Android)
+	 * @return MethodTable the shared table
+	 */
+
+	public static MethodTable getDefault() {
+		return s_default;
+	}
+
+
+	/**
+	 * Install the table requests are resolved against
+	 * @param table the table of the remote interface
+	 */
+
+	public static void setDefault(MethodTable table) {
+		s_default = table;
+	}
+}
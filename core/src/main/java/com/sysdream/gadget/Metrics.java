@@ -0,0 +1,228 @@
+package com.sysdream.gadget;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Metrics
+ *
+ * Counters and latency histograms of the RPC hot path, shared by every
+ * transport. Each request goes through these stages:
+ *
+ *   read      receiving a frame's payload, once its header arrived (blocking transports)
+ *   decode    decompressing and decoding the request
+ *   queue     waiting for a worker
+ *   dispatch  handling the request, Binder call included
+ *   binder    the reflective call into the Fino service
+ *   write     encoding, compressing and sending the response
+ *
+ * plus per-method call counts, errors and latencies. Recording never
+ * allocates once a method has been seen, nor locks. The reserved "stats"
+ * method returns snapshot().
+ */
+
+public class Metrics {
+
+	public final static int READ = 0;
+	public final static int DECODE = 1;
+	public final static int QUEUE = 2;
+	public final static int DISPATCH = 3;
+	public final static int BINDER = 4;
+	public final static int WRITE = 5;
+	private final static String[] STAGES = { "read", "decode", "queue", "dispatch", "binder", "write" };
+
+	private final static Metrics s_instance = new Metrics();
+
+
+	/**
+	 * Per-method counters
+	 */
+
+	private static class MethodStats {
+		final AtomicLong errors = new AtomicLong(0);
+		final Histogram latency = new Histogram();
+	}
+
+	private long m_started = System.currentTimeMillis();
+	private Histogram[] m_stages = new Histogram[STAGES.length];
+	private ConcurrentHashMap<String, MethodStats> m_methods = new ConcurrentHashMap<String, MethodStats>();
+	private AtomicLong m_requests = new AtomicLong(0);
+	private AtomicLong m_errors = new AtomicLong(0);
+	private AtomicLong m_bytes_in = new AtomicLong(0);
+	private AtomicLong m_timeouts = new AtomicLong(0);
+	private AtomicLong m_cancelled = new AtomicLong(0);
+	private AtomicLong m_throttled = new AtomicLong(0);
+	private AtomicLong m_coalesced = new AtomicLong(0);
+
+
+	private Metrics() {
+		for (int i=0; i<this.m_stages.length; i++)
+			this.m_stages[i] = new Histogram();
+	}
+
+
+	/**
+	 * Get the process-wide metrics
+	 * @return Metrics the instance
+	 */
+
+	public static Metrics getInstance() {
+		return s_instance;
+	}
+
+
+	/**
+	 * Record the duration of a stage
+	 * @param stage one of the stage constants
+	 * @param start the stage's start, from System.nanoTime()
+	 */
+
+	public void record(int stage, long start) {
+		this.m_stages[stage].record(System.nanoTime() - start);
+	}
+
+
+	/**
+	 * Count received request bytes
+	 * @param bytes the payload size
+	 */
+
+	public void received(int bytes) {
+		this.m_bytes_in.addAndGet(bytes);
+	}
+
+
+	/**
+	 * Count a call answered by its deadline
+	 */
+
+	public void timedOut() {
+		this.m_timeouts.incrementAndGet();
+	}
+
+
+	/**
+	 * Count a call cancelled by its client
+	 */
+
+	public void cancelled() {
+		this.m_cancelled.incrementAndGet();
+	}
+
+
+	/**
+	 * Count a request rejected by its client's rate limit
+	 */
+
+	public void throttled() {
+		this.m_throttled.incrementAndGet();
+	}
+
+
+	/**
+	 * Count a call served by an identical one in flight
+	 */
+
+	public void coalesced() {
+		this.m_coalesced.incrementAndGet();
+	}
+
+
+	/**
+	 * Record a handled request
+	 * @param method the requested method
+	 * @param start the handling's start, from System.nanoTime()
+	 * @param success False if an error was returned
+	 */
+
+	public void recordCall(String method, long start, boolean success) {
+		long duration = System.nanoTime() - start;
+		this.m_stages[DISPATCH].record(duration);
+		this.m_requests.incrementAndGet();
+
+		MethodStats stats = this.m_methods.get(method);
+		if (stats == null)
+		{
+			MethodStats created = new MethodStats();
+			stats = this.m_methods.putIfAbsent(method, created);
+			if (stats == null)
+				stats = created;
+		}
+		stats.latency.record(duration);
+		if (!success)
+		{
+			stats.errors.incrementAndGet();
+			this.m_errors.incrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Build the stats RPC's result
+	 * @param dispatcher the dispatcher whose queue depth is reported, may be null
+	 * @return Map<String, Object> the current metrics
+	 */
+
+	public Map<String, Object> snapshot(Dispatcher dispatcher) {
+		LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>();
+		long uptime = Math.max(1, System.currentTimeMillis() - this.m_started);
+		long requests = this.m_requests.get();
+
+		stats.put("uptime_ms", Long.valueOf(uptime));
+		stats.put("requests", Long.valueOf(requests));
+		stats.put("errors", Long.valueOf(this.m_errors.get()));
+		stats.put("requests_per_s", Double.valueOf(requests * 1000.0 / uptime));
+		stats.put("bytes_in", Long.valueOf(this.m_bytes_in.get()));
+		stats.put("timeouts", Long.valueOf(this.m_timeouts.get()));
+		stats.put("cancelled", Long.valueOf(this.m_cancelled.get()));
+		stats.put("throttled", Long.valueOf(this.m_throttled.get()));
+		stats.put("coalesced", Long.valueOf(this.m_coalesced.get()));
+		if (dispatcher != null)
+			stats.put("queue_depth", Integer.valueOf(dispatcher.getQueueDepth()));
+
+		LinkedHashMap<String, Object> stages = new LinkedHashMap<String, Object>();
+		for (int i=0; i<STAGES.length; i++)
+			stages.put(STAGES[i], this.m_stages[i].snapshot());
+		stats.put("stages", stages);
+
+		TreeMap<String, Object> methods = new TreeMap<String, Object>();
+		for (Map.Entry<String, MethodStats> entry : this.m_methods.entrySet())
+		{
+			Map<String, Object> method = entry.getValue().latency.snapshot();
+			method.put("errors", Long.valueOf(entry.getValue().errors.get()));
+			methods.put(entry.getKey(), method);
+		}
+		stats.put("methods", methods);
+		return stats;
+	}
+
+
+	/**
+	 * Summarize the metrics for display
+	 * @param dispatcher the dispatcher whose queue depth is reported, may be null
+	 * @return String a few lines of text
+	 */
+
+	public String summary(Dispatcher dispatcher) {
+		long uptime = Math.max(1, System.currentTimeMillis() - this.m_started);
+		long requests = this.m_requests.get();
+		Histogram dispatch = this.m_stages[DISPATCH];
+		Histogram binder = this.m_stages[BINDER];
+
+		StringBuilder text = new StringBuilder();
+		text.append("Requests: ").append(requests)
+			.append(" (").append(this.m_errors.get()).append(" errors, ")
+			.append(String.format("%.1f", requests * 1000.0 / uptime)).append("/s)\n");
+		text.append("Latency p50/p99: ").append(dispatch.getPercentile(50)).append('/')
+			.append(dispatch.getPercentile(99)).append(" us\n");
+		text.append("Binder p50/p99: ").append(binder.getPercentile(50)).append('/')
+			.append(binder.getPercentile(99)).append(" us\n");
+		if (dispatcher != null)
+			text.append("Queue depth: ").append(dispatcher.getQueueDepth());
+		return text.toString();
+	}
+}
@@ -0,0 +1,428 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Non-blocking server thread
+ *
+ * Single thread multiplexing every client socket through a Selector. Frames
+ * (4-byte big-endian size followed by a JSON request) are read incrementally
+ * and complete requests are handed to the service's bounded worker pool
+ * (see Channel for ordering guarantees).
+ */
+
+public class NioServerThread extends Thread implements IGadgetServer {
+
+	private final static String TAG = "NioServer";
+	private final static int MAX_QUEUED = 256*1024;
+	private final static int RECV_BUFFER_SIZE = 8192;
+	private final static int RECV_BUFFER_MAX = 256*1024;
+
+	private int port = -1;
+	private int m_max_frame;
+	private boolean m_running = false;
+	private Selector m_selector = null;
+	private ServerSocketChannel m_server = null;
+	private Dispatcher m_dispatcher = null;
+	private int m_max_clients;
+	private ArrayList<Connection> m_clients = new ArrayList<Connection>();
+	private long m_write_timeout;
+	private ConcurrentLinkedQueue<Connection> m_writable = new ConcurrentLinkedQueue<Connection>();
+	private ConcurrentLinkedQueue<Connection> m_stalled = new ConcurrentLinkedQueue<Connection>();
+	private ConcurrentLinkedQueue<Connection> m_paused = new ConcurrentLinkedQueue<Connection>();
+	private int m_max_pending;
+
+
+	/**
+	 * Connection
+	 *
+	 * Holds the socket side of a single client: partially read frame and
+	 * responses waiting to be written.
+	 */
+
+	private class Connection extends Channel {
+
+		private SocketChannel channel = null;
+		private SelectionKey key = null;
+		private ByteBuffer header = ByteBuffer.allocate(4);
+		private ByteBuffer body = null;
+		private ByteBuffer m_recv = ByteBuffer.allocate(RECV_BUFFER_SIZE);
+		private ConcurrentLinkedQueue<ByteBuffer> m_outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+		private int m_queued = 0;
+		private boolean m_closed = false;
+		private volatile boolean m_reading = true;
+
+		public Connection(SocketChannel channel) {
+			super(m_dispatcher, m_max_frame, m_max_pending);
+			this.channel = channel;
+		}
+
+
+		/**
+		 * Get the read interest of the connection, none while paused
+		 */
+
+		public int readOps() {
+			return this.m_reading ? SelectionKey.OP_READ : 0;
+		}
+
+
+		/**
+		 * Read as much data as available and extract complete requests.
+		 *
+		 * @return False if the remote client closed the connection, true otherwise
+		 */
+
+		public boolean onReadable() throws IOException {
+			while (true) {
+				if (this.body == null)
+				{
+					if (this.channel.read(this.header) < 0)
+						return false;
+					if (this.header.hasRemaining())
+						return true;
+
+					/* Header complete, reuse the receive buffer for the frame body */
+					int size = this.header.getInt(0);
+					this.header.clear();
+					if ((size < 0) || (size > m_max_frame))
+						throw new ProtocolException("Bad frame size " + size);
+					if ((this.m_recv.capacity() < size)
+							|| ((this.m_recv.capacity() > RECV_BUFFER_MAX) && (size <= RECV_BUFFER_SIZE)))
+						this.m_recv = ByteBuffer.allocate(Math.max(size, RECV_BUFFER_SIZE));
+					this.m_recv.clear();
+					this.m_recv.limit(size);
+					this.body = this.m_recv;
+				}
+
+				if (this.body.hasRemaining() && (this.channel.read(this.body) < 0))
+					return false;
+				if (this.body.hasRemaining())
+					return true;
+
+				/* Frame complete */
+				ByteBuffer frame = this.body;
+				this.body = null;
+				this.onFrame(frame.array(), 0, frame.limit());
+				if (!this.m_reading)
+					return true;
+			}
+		}
+
+
+		/**
+		 * Stop or resume reading, through the selector thread which owns
+		 * the interest set
+		 *
+		 * @param paused True to stop reading, false to resume
+		 */
+
+		@Override
+		protected void pause(boolean paused) {
+			this.m_reading = !paused;
+			m_paused.add(this);
+			m_selector.wakeup();
+		}
+
+
+		/**
+		 * Queue a frame. Chunks are copied since their buffer is reused,
+		 * a single or last frame is queued as is.
+		 *
+		 * @param frame the frame to send
+		 * @param more True if other chunks follow
+		 */
+
+		public void sendFrame(FrameBuffer frame, boolean more) throws IOException {
+			this.queue(more ? frame.copyFrame(true) : frame.toFrame());
+		}
+
+
+		/**
+		 * Queue an encoded frame and ask the selector thread to write it.
+		 * The thread writing responses waits while too much data is queued,
+		 * so that streamed responses are produced at the pace the client
+		 * reads them, but no longer than the write timeout: past it, the
+		 * client is disconnected. The selector thread, which only sends the
+		 * handshake's answer, never waits.
+		 *
+		 * @param frame the frame to send
+		 */
+
+		private void queue(ByteBuffer frame) throws IOException {
+			synchronized (this.m_outbox) {
+				try {
+					if (Thread.currentThread() != NioServerThread.this)
+						this.awaitSpace();
+				}
+				catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if (this.m_closed)
+					throw new IOException("Connection closed");
+				this.m_queued += frame.remaining();
+				this.m_outbox.add(frame);
+			}
+			m_writable.add(this);
+			m_selector.wakeup();
+		}
+
+
+		/**
+		 * Wait until the outbox is below its limit. Must hold m_outbox.
+		 */
+
+		private void awaitSpace() throws InterruptedException {
+			long deadline = System.nanoTime() + m_write_timeout * 1000000L;
+			while ((this.m_queued > MAX_QUEUED) && !this.m_closed) {
+				if (m_write_timeout <= 0)
+				{
+					this.m_outbox.wait();
+					continue;
+				}
+				long left = (deadline - System.nanoTime()) / 1000000L;
+				if (left <= 0)
+				{
+					/* The selector thread owns the socket, let it close it */
+					Logger.d(TAG, "Client not reading, disconnecting");
+					this.m_closed = true;
+					this.m_outbox.notifyAll();
+					m_stalled.add(this);
+					m_selector.wakeup();
+					return;
+				}
+				this.m_outbox.wait(left);
+			}
+		}
+
+
+		/**
+		 * Write queued responses without blocking.
+		 */
+
+		public void onWritable() throws IOException {
+			ByteBuffer buf;
+			while ((buf = this.m_outbox.peek()) != null) {
+				this.channel.write(buf);
+				if (buf.hasRemaining())
+					return;
+				synchronized (this.m_outbox) {
+					this.m_outbox.poll();
+					this.m_queued -= buf.limit();
+					this.m_outbox.notifyAll();
+				}
+			}
+			this.key.interestOps(this.readOps());
+		}
+
+
+		/**
+		 * Close the client's socket.
+		 */
+
+		@Override
+		public void close() {
+			if (this.key != null)
+				this.key.cancel();
+			synchronized (this.m_outbox) {
+				this.m_closed = true;
+				this.m_outbox.notifyAll();
+			}
+			super.close();
+			try {
+				this.channel.close();
+			}
+			catch (IOException sockerr) {
+			}
+		}
+	}
+
+
+	/**
+	 * Constructor
+	 * @param dispatcher the dispatcher running requests
+	 * @param config limits configuration
+	 * @param port the port to listen on
+	 */
+
+	public NioServerThread(Dispatcher dispatcher, GadgetConfig config, int port) {
+		this.port = port;
+		this.m_dispatcher = dispatcher;
+		this.m_max_clients = config.maxClients;
+		this.m_max_frame = config.maxFrameSize;
+		this.m_write_timeout = config.writeTimeout;
+		this.m_max_pending = config.maxInFlight;
+	}
+
+
+	@Override
+	public void start() {
+		m_running = true;
+		super.start();
+	}
+
+
+	/**
+	 * Check if this thread is running
+	 * @return boolean True if running, false otherwise
+	 */
+
+	public synchronized boolean isRunning() {
+		return this.m_running;
+	}
+
+
+	/**
+	 * Kill this thread
+	 */
+
+	public synchronized void kill() {
+		m_running = false;
+		if (this.m_selector != null)
+			this.m_selector.wakeup();
+		this.interrupt();
+	}
+
+
+	/**
+	 * NioServerThread's main loop
+	 *
+	 * Accept connections, read frames and flush pending responses.
+	 */
+
+	public void run() {
+		try {
+			this.m_selector = Selector.open();
+			this.m_server = ServerSocketChannel.open();
+			this.m_server.configureBlocking(false);
+			this.m_server.socket().setReuseAddress(true);
+			this.m_server.socket().bind(new InetSocketAddress(this.port));
+			this.m_server.register(this.m_selector, SelectionKey.OP_ACCEPT);
+
+			while (this.isRunning()) {
+				this.m_selector.select();
+
+				/* Drop clients that stopped reading */
+				Connection conn;
+				while ((conn = this.m_stalled.poll()) != null)
+					this.onClientDisconnect(conn);
+
+				/* Enable write notifications for connections having responses to send */
+				while ((conn = this.m_writable.poll()) != null) {
+					if (conn.key.isValid())
+						conn.key.interestOps(conn.readOps() | SelectionKey.OP_WRITE);
+				}
+
+				/* Stop or resume reading from clients whose requests fill their queue */
+				while ((conn = this.m_paused.poll()) != null) {
+					if (conn.key.isValid())
+						conn.key.interestOps((conn.key.interestOps() & SelectionKey.OP_WRITE) | conn.readOps());
+				}
+
+				Iterator<SelectionKey> keys = this.m_selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+						this.onAccept();
+					else
+					{
+						conn = (Connection)key.attachment();
+						try {
+							if (key.isReadable() && !conn.onReadable())
+							{
+								Logger.d(TAG, "Client disconnected");
+								this.onClientDisconnect(conn);
+								continue;
+							}
+							if (key.isValid() && key.isWritable())
+								conn.onWritable();
+						}
+						catch (IOException sockerr) {
+							Logger.d(TAG, "Client socket closed");
+							this.onClientDisconnect(conn);
+						}
+					}
+				}
+			}
+		}
+		catch (ClosedSelectorException e) {
+			Logger.d(TAG, "Selector closed");
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			this.shutdown();
+		}
+	}
+
+
+	/**
+	 * Accept a pending connection and register it on the selector.
+	 */
+
+	private void onAccept() throws IOException {
+		SocketChannel channel = this.m_server.accept();
+		if (channel == null)
+			return;
+		if (this.m_clients.size() >= this.m_max_clients)
+		{
+			Logger.d(TAG, "Too many clients, connection refused");
+			channel.close();
+			return;
+		}
+		Logger.d(TAG, "Handle client connection");
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection conn = new Connection(channel);
+		conn.key = channel.register(this.m_selector, SelectionKey.OP_READ, conn);
+		this.m_clients.add(conn);
+	}
+
+
+	/**
+	 * Handles client disconnection
+	 * @param conn the client connection
+	 */
+
+	private void onClientDisconnect(Connection conn) {
+		conn.close();
+		this.m_clients.remove(conn);
+	}
+
+
+	/**
+	 * Close every socket.
+	 */
+
+	private void shutdown() {
+		for (Connection conn : this.m_clients)
+			conn.close();
+		this.m_clients.clear();
+		try {
+			if (this.m_server != null)
+				this.m_server.close();
+			if (this.m_selector != null)
+				this.m_selector.close();
+		}
+		catch (IOException sockerr) {
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package com.sysdream.gadget;
+
+import java.lang.reflect.Method;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Provide a small RPC message format required to communicate
+ * with Gadget's RPC service  
+ * 
+ * @author <a href="mailto:d.cauquil@sysdream.com>Damien Cauquil</a>
+ * @version 1.0
+ */
+
+/**
+ * RPC Message class
+ * 
+ * This class is used by Gson to deserialize client's requests.
+ */
+
+public class Request {
+	
+	/**
+	 * Special methods handled by Gadget itself
+	 */
+	
+	public final static String[] GADGET_METHODS = {
+		"listApps", "connectApp", "subscribeApps", "unsubscribeApps", "stats"
+	};
+	
+	/**
+	 * Scheduling priorities, by name in requests and handshakes
+	 */
+	
+	public final static int INTERACTIVE = 0;
+	public final static int BULK = 1;
+	public final static String[] PRIORITIES = { "interactive", "bulk" };
+	
+	/**
+	 * Request's parameters. Not all of them will be deserialized. 
+	 */
+
+	public String app;
+	public String method;
+	public Object[] parameters;
+	public Class<?>[] paramTypes;
+
+	/**
+	 * Optional correlation ID. When set, the request may be processed
+	 * concurrently with others and its response carries the same ID.
+	 */
+
+	public Integer id = null;
+
+	/**
+	 * Calls of a batch request, null for single calls. Entries that could
+	 * not be parsed are null.
+	 */
+
+	public Request[] batch = null;
+
+	/**
+	 * Resolved remote method, null for requests handled by Gadget itself.
+	 */
+
+	public Method target = null;
+
+	/**
+	 * Client the request comes from, set by the transport. Lets Gadget
+	 * push events to subscribed clients.
+	 */
+
+	public transient Dispatcher.Client client = null;
+
+	/**
+	 * Call watched by a subscription request, and its polling interval in
+	 * milliseconds (0 for the default one).
+	 */
+
+	public Request watched = null;
+	public int interval = 0;
+
+	/**
+	 * Deadline of the call in milliseconds, 0 for the default one.
+	 */
+
+	public int timeout = 0;
+
+	/**
+	 * Scheduling priority, INTERACTIVE or BULK, -1 for the session's one.
+	 */
+
+	public int priority = -1;
+
+	/**
+	 * Set when the request could not be parsed apart from its ID: it is
+	 * only answered with an error.
+	 */
+
+	public boolean malformed = false;
+		
+	public Request(String app, String method, Object[] parameters, Class<?>[] paramTypes) {
+		this.app = app;
+		this.method = method;
+		this.parameters = parameters;
+		this.paramTypes = paramTypes;
+	}
+	
+	/**
+	 * Create an instance of Request
+	 *
+	 * Three forms are accepted: the legacy array [app, method, args...], a
+	 * tagged object {"id": 42, "call": [app, method, args...]} used for
+	 * pipelined requests, and a batch object {"id": 42, "batch": [[app,
+	 * method, args...], ...]} executing several calls in one round trip
+	 * ("id" being optional in both object forms).
+	 *
+	 * Subscriptions use two more tagged forms: {"id": 42, "subscribe": [app,
+	 * method, args...], "interval": 1000} to be pushed the call's result
+	 * each time it changes, and {"id": 43, "unsubscribe": 42} to cancel it.
+	 *
+	 * Any object form may carry a "timeout" in milliseconds, overriding the
+	 * configured call deadline, and {"id": 44, "cancel": 42} drops request
+	 * 42 of the same client, whether queued or running. They may also set
+	 * a "priority", "interactive" (the default) or "bulk", see Dispatcher.
+	 *
+	 * Object forms whose ID can be read are answered even if malformed
+	 * (unknown method, bad arguments or options), see malformed.
+	 *
+	 * @param json Serialized data required to build the request
+	 * @return a Request instance built from the provided json data
+	 */
+	public static Request fromJson(String json) {
+		try {
+			/* Parse message */
+			return fromJsonTree(JsonParser.parseString(json));
+		}
+		catch (RuntimeException e)
+		{
+			/* Syntax error, return null */
+            e.printStackTrace();
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Create an instance of Request from an already parsed message
+	 * @param root the parsed message, see fromJson() for accepted forms
+	 * @return a Request instance, null if the message is malformed and untagged
+	 */
+	public static Request fromJsonTree(JsonElement root) {
+		Gson gson = JsonCodec.GSON;
+		Integer id = null;
+		
+		try {
+		    Request req;
+		    
+		    if (root.isJsonObject())
+		    {
+		    	/* Tagged request */
+		    	JsonObject tagged = root.getAsJsonObject();
+		    	if (tagged.has("id"))
+		    		id = gson.fromJson(tagged.get("id"), Integer.class);
+		    	if (tagged.has("batch") && tagged.get("batch").isJsonArray())
+		    	{
+		    		/* Batch request, entries that cannot be parsed are left null */
+		    		JsonArray calls = tagged.getAsJsonArray("batch");
+		    		Request[] batch = new Request[calls.size()];
+		    		for (int i=0; i<batch.length; i++)
+		    			if (calls.get(i).isJsonArray())
+		    				batch[i] = fromJsonArray(gson, calls.get(i).getAsJsonArray());
+		    		req = new Request(null, "batch", new Object[0], new Class<?>[0]);
+		    		req.batch = batch;
+		    	}
+		    	else if (tagged.has("call") && tagged.get("call").isJsonArray())
+		    		req = fromJsonArray(gson, tagged.getAsJsonArray("call"));
+		    	else if (tagged.has("subscribe") && tagged.get("subscribe").isJsonArray())
+		    	{
+		    		/* Subscription to a call's result */
+		    		Request watched = fromJsonArray(gson, tagged.getAsJsonArray("subscribe"));
+		    		if (watched == null)
+		    			return malformed(id);
+		    		req = new Request(watched.app, "subscribe", new Object[0], new Class<?>[0]);
+		    		req.watched = watched;
+		    		if (tagged.has("interval"))
+		    			req.interval = tagged.get("interval").getAsInt();
+		    	}
+		    	else if (tagged.has("unsubscribe"))
+		    	{
+		    		Integer subscription = gson.fromJson(tagged.get("unsubscribe"), Integer.class);
+		    		req = new Request(null, "unsubscribe", new Object[] { subscription }, new Class<?>[0]);
+		    	}
+		    	else if (tagged.has("cancel"))
+		    	{
+		    		Integer cancelled = gson.fromJson(tagged.get("cancel"), Integer.class);
+		    		req = new Request(null, "cancel", new Object[] { cancelled }, new Class<?>[0]);
+		    	}
+		    	else
+		    		return malformed(id);
+		    	if ((req != null) && tagged.has("timeout"))
+		    		req.timeout = tagged.get("timeout").getAsInt();
+		    	if ((req != null) && tagged.has("priority"))
+		    	{
+		    		req.priority = parsePriority(tagged.get("priority").getAsString());
+		    		if (req.priority < 0)
+		    			return malformed(id);
+		    	}
+		    }
+		    else
+		    	req = fromJsonArray(gson, root.getAsJsonArray());
+		    
+		    /* Tag request, unable to find a method otherwise */
+		    if (req == null)
+		    	return malformed(id);
+		    req.id = id;
+		    return req;
+		}
+		catch (RuntimeException e)
+		{
+			/* Syntax error or unexpected structure */
+            e.printStackTrace();
+			return malformed(id);
+		}
+	}
+	
+	
+	/**
+	 * Build the placeholder of a malformed request, so that it is answered
+	 * with an error rather than left unanswered
+	 * @param id the request's ID
+	 * @return a malformed Request, null if the ID is unknown
+	 */
+	private static Request malformed(Integer id) {
+		if (id == null)
+			return null;
+		Request req = new Request(null, "malformed", new Object[0], new Class<?>[0]);
+		req.id = id;
+		req.malformed = true;
+		return req;
+	}
+	
+	
+	/**
+	 * Get a priority from its name
+	 * @param name the priority's name
+	 * @return int the priority, -1 if unknown
+	 */
+	public static int parsePriority(String name) {
+		for (int i=0; i<PRIORITIES.length; i++)
+			if (PRIORITIES[i].equals(name))
+				return i;
+		return -1;
+	}
+	
+	
+	/**
+	 * Build a single call from its array form [app, method, args...]
+	 * @param gson Gson instance used to unserialize parameters
+	 * @param array the call's array
+	 * @return a Request instance, or null if no matching method is found
+	 */
+	private static Request fromJsonArray(Gson gson, JsonArray array) {
+		int i;
+		
+	    /* Must have at least 2 parameters */
+	    if (array.size()<2)
+	    	return null;
+	    
+	    /* Extract method */
+	    //Log.d("Request", "Parameters:"+String.valueOf(array.size()-2));
+	    String pkg = gson.fromJson(array.get(0), String.class);
+	    String method = gson.fromJson(array.get(1), String.class);
+	    Object[] parameters = null;
+	    
+	    if (isGadgetMethod(method))
+	    {
+	    	/* Handled by Gadget itself, parameters are kept as plain JSON values */
+	    	parameters = new Object[array.size()-2];
+	    	for (i=0; i<parameters.length; i++)
+	    		parameters[i] = gson.fromJson(array.get(i+2), Object.class);
+	    	return new Request(pkg, method, parameters, new Class<?>[0]);
+	    }
+	    else
+	    {
+		    /* Check if method exists and retrieve parameters type */
+		    MethodTable.Entry[] candidates = MethodTable.getDefault().lookup(method, array.size()-2);
+		    if (candidates == null)
+		    	return null;
+		    for (MethodTable.Entry m : candidates)
+		    {
+	    		/* Allocate memory */
+	    		parameters = new Object[array.size()-2];
+	    		
+	    		/* Try to unserialize */
+	    		try
+	    		{
+	    			for (i=0; i<(array.size()-2); i++)
+	    				parameters[i] = gson.fromJson(array.get(i+2), m.paramTypes[i]);
+	    			Request req = new Request(pkg, method, parameters, m.paramTypes);
+	    			req.target = m.method;
+	    			return req;
+	    		}
+	    		catch (JsonSyntaxException e)
+	    		{
+                    e.printStackTrace();
+	    		}
+		    }
+	    }
+	    
+	    /* Unable to find a method */
+	    return null;
+	}
+	
+	
+	/**
+	 * Check if a method is implemented by Gadget rather than by Fino services
+	 * @param method the method name
+	 * @return boolean True for Gadget's special methods
+	 */
+	public static boolean isGadgetMethod(String method) {
+		for (String name : GADGET_METHODS)
+			if (name.equals(method))
+				return true;
+		return false;
+	}
+}
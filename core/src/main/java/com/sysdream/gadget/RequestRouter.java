@@ -0,0 +1,242 @@
+package com.sysdream.gadget;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+
+/**
+ * Request router
+ *
+ * Builds the response of every request run by the dispatcher: Gadget's own
+ * methods (subscriptions, stats, listing and connecting applications) and
+ * calls to the target applications' inspection services, served from the
+ * result cache when allowed and retried once if the service died. Binding
+ * services and listing applications is left to the host, so the same code
+ * path runs on Android and on a plain JVM against a stand-in service.
+ *
+ * The router owns the dispatcher running its requests, and the
+ * subscriptions polling them.
+ */
+
+public class RequestRouter implements IRequestHandler {
+
+	private final static String TAG = "RequestRouter";
+
+	private IServiceHost m_host;
+	private GadgetConfig m_config;
+	private ResultCache m_cache;
+	private Dispatcher m_dispatcher;
+	private Subscriptions m_subscriptions;
+
+
+	/**
+	 * Constructor
+	 * @param host the platform binding services
+	 * @param config pool, limits and cache configuration
+	 */
+
+	public RequestRouter(IServiceHost host, GadgetConfig config) {
+		this.m_host = host;
+		this.m_config = config;
+		this.m_cache = new ResultCache(config.cacheableMethods, config.cacheMaxBytes);
+		this.m_dispatcher = new Dispatcher(this, config);
+		this.m_subscriptions = new Subscriptions(this, this.m_dispatcher, config);
+	}
+
+
+	/**
+	 * Get the dispatcher running requests
+	 * @return Dispatcher the dispatcher
+	 */
+
+	public Dispatcher getDispatcher() {
+		return this.m_dispatcher;
+	}
+
+
+	/**
+	 * Drop the cached results of an application, once its service changed
+	 * @param app the application's package
+	 */
+
+	public void invalidate(String app) {
+		this.m_cache.invalidate(app);
+	}
+
+
+	/**
+	 * Stop polling subscriptions and running requests
+	 */
+
+	public void shutdown() {
+		this.m_subscriptions.shutdown();
+		this.m_dispatcher.shutdown();
+	}
+
+
+	/**
+	 * Handle a request and build the response to send back to the client.
+	 *
+	 * This method is shared by every server mode and may be called from
+	 * several threads at once.
+	 *
+	 * @param req the request to process
+	 * @return Response the response to send to the remote client
+	 */
+
+	public Response handleRequest(Request req) {
+		if (req == null)
+			return new Response("Bad request", false);
+		if (req.malformed)
+			return Dispatcher.reject(req, "Bad request");
+
+		/* Responses echo the request's correlation ID */
+		long start = System.nanoTime();
+		Response resp = this.dispatch(req);
+		resp.id = req.id;
+		Metrics.getInstance().recordCall(req.method, start, resp.success);
+		return resp;
+	}
+
+
+	/**
+	 * Dispatch a request to Gadget itself or to the target service.
+	 *
+	 * @param req the request to process
+	 * @return Response the untagged response
+	 */
+
+	private Response dispatch(Request req) {
+		/* Batches are split by the dispatcher, each call is handled on its own */
+		if (req.batch != null)
+			return new Response("Bad request", false);
+
+		/* Subscription: push the watched call's result each time it changes */
+		if (req.watched != null)
+			return this.m_subscriptions.subscribe(req);
+		if (req.method.equals("unsubscribe"))
+		{
+			if ((req.parameters.length != 1) || !(req.parameters[0] instanceof Integer))
+				return new Response("Bad request", false);
+			return new Response(Boolean.valueOf(this.m_subscriptions.unsubscribe(req.client, (Integer)req.parameters[0])), true);
+		}
+
+		/* Special request 'stats': Gadget's own metrics */
+		if (req.method.equals("stats"))
+			return new Response(Metrics.getInstance().snapshot(this.m_dispatcher), true);
+
+		/* Special request 'listApps', not implemented in Fino Service */
+		if (req.method.equals("listApps"))
+		{
+			/* Send the list of applications implementing "com.sysdream.fino.inspection" */
+			return new Response(this.m_host.getApps(), true);
+		}
+		else if (req.method.equals("subscribeApps"))
+		{
+			/* Special request 'subscribeApps': push application list changes to the client,
+			 * tagged with this request's ID, and send the current list */
+			if (req.client == null)
+				return new Response("Subscriptions not supported", false);
+			if (req.id == null)
+				return new Response("Subscriptions must be tagged", false);
+			this.m_host.subscribeApps(req.client, req.id);
+			return new Response(this.m_host.getApps(), true);
+		}
+		else if (req.method.equals("unsubscribeApps"))
+		{
+			if (req.client == null)
+				return new Response("Subscriptions not supported", false);
+			return new Response(Boolean.valueOf(this.m_host.unsubscribeApps(req.client)), true);
+		}
+		else if (req.method.equals("connectApp")) {
+			/* Special request'connectApp', not implement in Fino Service */
+			/* Attach Gadget to the remote application (create it if needed) */
+			if (req.app == null)
+				return new Response("Bad request", false);
+			try {
+				if (this.m_host.connect(req.app, this.m_config.bindTimeout) == null)
+					return new Response("Cannot connect to " + req.app, false);
+			}
+			catch (InterruptedException e) {
+				return new Response("Interrupted", false);
+			}
+			return new Response(req.app, true);
+		}
+
+		/* Call our remote method, resolved while parsing the request */
+		Method m = req.target;
+		if (m == null)
+			return new Response("Method does not exist", false);
+		/* Idempotent calls may be served from the cache */
+		String key = null;
+		if (this.m_cache.isCacheable(req))
+		{
+			key = ResultCache.keyOf(req);
+			Object[] cached = this.m_cache.get(key);
+			if (cached != null)
+				return new Response(cached[0], true);
+		}
+		return this.invoke(req, m, key);
+	}
+
+
+	/**
+	 * Call a remote method, retrying once if its service died
+	 *
+	 * @param req the request
+	 * @param m the resolved remote method
+	 * @param key the request's cache key, null if not cacheable
+	 * @return Response the untagged response
+	 */
+
+	private Response invoke(Request req, Method m, String key) {
+		try {
+			/* Read before getting the service, see ResultCache */
+			int generation = this.m_cache.generation(req.app);
+			Object service = this.m_host.getService(req.app);
+			for (int attempt=0; service != null; attempt++)
+			{
+				Object result;
+				long call = System.nanoTime();
+				try {
+					if (req.parameters.length == 0)
+						result = m.invoke(service);
+					else
+						result = m.invoke(service, req.parameters);
+					Metrics.getInstance().record(Metrics.BINDER, call);
+				}
+				catch (InvocationTargetException e) {
+					Metrics.getInstance().record(Metrics.BINDER, call);
+					if (!this.m_host.isDead(e.getCause()) || (attempt > 0))
+						throw e;
+
+					/* Service died under us: retry once, on the rebound service */
+					Logger.d(TAG, req.app + " died, retrying " + req.method);
+					this.m_host.markDead(req.app, service);
+					generation = this.m_cache.generation(req.app);
+					service = this.m_host.connect(req.app, this.m_config.bindTimeout);
+					continue;
+				}
+				if (key != null)
+					this.m_cache.put(req.app, key, result, generation);
+				return new Response(result, true);
+			}
+
+			if (this.m_host.hasDied(req.app))
+				return new Response("Service died", false);
+			return new Response("Service not found", false);
+		} catch (InterruptedException e) {
+			return new Response("Interrupted", false);
+		} catch (IllegalArgumentException e1) {
+			/* Bad argument */
+			return new Response("Illegal argument", false);
+		} catch (IllegalAccessException e) {
+			/* Access exception */
+			return new Response("Illegal access", false);
+		} catch (InvocationTargetException e) {
+			/* Invocation error */
+			e.printStackTrace();
+			return new Response("Invocation error", false);
+		}
+	}
+}
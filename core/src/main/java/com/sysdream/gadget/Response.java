@@ -0,0 +1,38 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+public class Response {
+	
+	public boolean success;
+	public Object response;
+	public Integer id = null;	/* echoes Request.id, omitted when null */
+	
+	public Response(Object response, boolean success) {
+		this.response = response;
+		this.success = success;
+	}
+	
+	public byte[] toJson() {
+		try {
+			return JsonCodec.GSON.toJson(this).getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			return JsonCodec.GSON.toJson(this).getBytes();
+		}
+	}
+	
+	public byte[] toRaw() {
+		FrameBuffer frame = new FrameBuffer(256);
+		try {
+			JsonCodec.getInstance().encodeResponse(this, frame);
+		}
+		catch (IOException e) {
+		}
+		//Log.d("Response", "Size of response: "+String.valueOf(frame.payloadSize()));
+		/* Patch the frame header, then copy the exact frame */
+		frame.toFrame();
+		return frame.toByteArray();
+	}
+}
@@ -0,0 +1,179 @@
+package com.sysdream.gadget;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Result cache
+ *
+ * Read-through cache of Fino call results, keyed by (app, method,
+ * arguments). Only methods listed in the allowlist are cached: their result
+ * must not change as long as the target service stays the same. Entries are
+ * evicted in least recently used order once the cache exceeds its size
+ * budget, estimated from the JSON size of keys and results. Every entry of
+ * an app is dropped when its service is registered again or unregistered.
+ *
+ * Each drop also bumps the app's generation: callers read it before
+ * getting the service they call, and the result is only stored if it did
+ * not change meanwhile, so that a result of a replaced service is not
+ * cached after its entries were dropped.
+ */
+
+public class ResultCache {
+
+	/**
+	 * Cached result
+	 */
+
+	private static class Entry {
+		final String app;
+		final Object result;
+		final int size;
+
+		Entry(String app, Object result, int size) {
+			this.app = app;
+			this.result = result;
+			this.size = size;
+		}
+	}
+
+	private Set<String> m_methods;
+	private long m_max_bytes;
+	private long m_bytes = 0;
+	private LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private HashMap<String, Integer> m_generations = new HashMap<String, Integer>();
+	private int m_generation = 0;
+
+
+	/**
+	 * Constructor
+	 * @param methods names of the cacheable methods
+	 * @param maxBytes size budget of the cache
+	 */
+
+	public ResultCache(Set<String> methods, long maxBytes) {
+		this.m_methods = new HashSet<String>(methods);
+		this.m_max_bytes = maxBytes;
+	}
+
+
+	/**
+	 * Check if a request's result may be cached
+	 * @param req the request
+	 * @return boolean True if its method is in the allowlist
+	 */
+
+	public boolean isCacheable(Request req) {
+		return (this.m_max_bytes > 0) && (req.app != null) && this.m_methods.contains(req.method);
+	}
+
+
+	/**
+	 * Build the cache key of a request
+	 * @param req the request
+	 * @return String the key
+	 */
+
+	public static String keyOf(Request req) {
+		return req.app + '\0' + req.method + '\0' + JsonCodec.GSON.toJson(req.parameters);
+	}
+
+
+	/**
+	 * Look a result up
+	 * @param key the request's key
+	 * @return Object[] a one-element array holding the result (which may be null), null if not cached
+	 */
+
+	public synchronized Object[] get(String key) {
+		Entry entry = this.m_entries.get(key);
+		if (entry == null)
+			return null;
+		return new Object[] { entry.result };
+	}
+
+
+	/**
+	 * Get an application's generation, bumped each time its entries are
+	 * dropped
+	 * @param app the target application
+	 * @return int the generation to pass to put()
+	 */
+
+	public synchronized int generation(String app) {
+		Integer generation = this.m_generations.get(app);
+		return (generation == null) ? this.m_generation : generation.intValue();
+	}
+
+
+	/**
+	 * Store a result, unless the application's entries were dropped since
+	 * its generation was read
+	 * @param app the target application
+	 * @param key the request's key
+	 * @param result the call's result
+	 * @param generation the application's generation, read before getting its service
+	 */
+
+	public void put(String app, String key, Object result, int generation) {
+		/* Estimate the size outside of the lock */
+		int size = 2 * key.length() + JsonCodec.GSON.toJson(result).length();
+		if (size > this.m_max_bytes)
+			return;
+
+		synchronized (this) {
+			if (this.generation(app) != generation)
+				return;
+			Entry previous = this.m_entries.put(key, new Entry(app, result, size));
+			if (previous != null)
+				this.m_bytes -= previous.size;
+			this.m_bytes += size;
+
+			/* Evict least recently used entries */
+			Iterator<Entry> it = this.m_entries.values().iterator();
+			while ((this.m_bytes > this.m_max_bytes) && it.hasNext()) {
+				this.m_bytes -= it.next().size;
+				it.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Drop every entry of an application
+	 * @param app the application whose service changed
+	 */
+
+	public synchronized void invalidate(String app) {
+		this.m_generations.put(app, Integer.valueOf(this.generation(app) + 1));
+		Iterator<Map.Entry<String, Entry>> it = this.m_entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next().getValue();
+			if (entry.app.equals(app))
+			{
+				this.m_bytes -= entry.size;
+				it.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Drop every entry
+	 */
+
+	public synchronized void clear() {
+		/* Every application moves past its current generation */
+		for (Integer generation : this.m_generations.values())
+			this.m_generation = Math.max(this.m_generation, generation.intValue());
+		this.m_generation++;
+		this.m_generations.clear();
+		this.m_entries.clear();
+		this.m_bytes = 0;
+	}
+}
@@ -0,0 +1,346 @@
+package com.sysdream.gadget;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Reverse-connect thread
+ *
+ * Instead of listening, Gadget dials out to the analyst's workstation and
+ * keeps one long-lived connection (the uplink) over which many logical
+ * client sessions are multiplexed. Every uplink frame is laid out as:
+ *
+ *   [4-byte size][4-byte channel ID][inner frame]
+ *
+ * where size covers the channel ID and the inner frame, and the inner frame
+ * is exactly what a directly connected client would send or receive
+ * (4-byte size header and payload, see Session). A channel is opened by
+ * the first frame the workstation sends with a new ID, and closed when
+ * it sends a frame with the ID alone. Each channel negotiates its own
+ * session options. At most maxClients channels are open at once: Gadget
+ * answers the frames of any other new ID with the ID alone, refusing the
+ * channel. When the uplink is lost, every channel is closed and Gadget
+ * reconnects with exponential backoff.
+ *
+ * A single peer reads every channel's responses, so an uplink write
+ * blocked past the write timeout drops the uplink rather than hold every
+ * channel's writers (see WriteWatchdog).
+ */
+
+public class ReverseConnectThread extends Thread implements IGadgetServer {
+
+	private final static String TAG = "ReverseConnect";
+	private final static int CONNECT_TIMEOUT = 10000;
+	private final static long MIN_BACKOFF = 1000;
+	private final static long MAX_BACKOFF = 60000;
+
+	private String m_address = null;
+	private int m_port = -1;
+	private boolean m_running = false;
+	private Socket m_socket = null;
+	private Dispatcher m_dispatcher = null;
+	private int m_max_frame;
+	private int m_max_pending;
+	private int m_max_channels;
+	private WriteWatchdog m_watchdog = null;
+	private HashMap<Integer, UplinkChannel> m_channels = new HashMap<Integer, UplinkChannel>();
+
+
+	/**
+	 * Connection to the workstation, shared by every channel
+	 */
+
+	private class Uplink implements WriteWatchdog.Target {
+
+		private Socket m_sock;
+		private DataOutputStream m_out;
+
+		public Uplink(Socket sock) throws IOException {
+			this.m_sock = sock;
+			this.m_out = new DataOutputStream(sock.getOutputStream());
+		}
+
+
+		/**
+		 * Wrap a frame with a channel ID and write it
+		 *
+		 * @param id the channel ID
+		 * @param frame the frame to send, null for the ID alone
+		 * @param more True if other chunks follow
+		 */
+
+		public void write(int id, FrameBuffer frame, boolean more) throws IOException {
+			synchronized (this.m_out) {
+				m_watchdog.begin(this);
+				try {
+					this.m_out.writeInt(4 + ((frame != null) ? frame.size() : 0));
+					this.m_out.writeInt(id);
+					if (frame != null)
+						frame.writeFrame(this.m_out, more);
+					this.m_out.flush();
+				}
+				finally {
+					m_watchdog.end(this);
+				}
+			}
+		}
+
+
+		public void onWriteTimeout() {
+			/* Fails the blocked write, and the reading thread which reconnects */
+			try {
+				this.m_sock.close();
+			}
+			catch (IOException sockerr) {
+			}
+		}
+	}
+
+
+	/**
+	 * Logical session multiplexed over the uplink
+	 */
+
+	private class UplinkChannel extends Channel {
+
+		private int m_id;
+		private Uplink m_uplink;
+		private volatile boolean m_closed = false;
+
+		public UplinkChannel(int id, Uplink uplink) {
+			super(m_dispatcher, m_max_frame, m_max_pending);
+			this.m_id = id;
+			this.m_uplink = uplink;
+		}
+
+
+		/**
+		 * Wrap a frame with the channel ID and write it to the uplink
+		 *
+		 * @param frame the frame to send
+		 * @param more True if other chunks follow
+		 */
+
+		public void sendFrame(FrameBuffer frame, boolean more) throws IOException {
+			/* Late response to a closed channel, the workstation forgot its ID */
+			if (this.m_closed)
+				throw new IOException("Channel closed");
+			this.m_uplink.write(this.m_id, frame, more);
+		}
+
+
+		@Override
+		public void close() {
+			this.m_closed = true;
+			super.close();
+		}
+	}
+
+
+	/**
+	 * Constructor
+	 * @param dispatcher the dispatcher running requests
+	 * @param config limits configuration
+	 * @param address the workstation's address
+	 * @param port the workstation's port
+	 */
+
+	public ReverseConnectThread(Dispatcher dispatcher, GadgetConfig config, String address, int port) {
+		this.m_address = address;
+		this.m_port = port;
+		this.m_dispatcher = dispatcher;
+		this.m_max_frame = config.maxFrameSize;
+		this.m_max_pending = config.maxInFlight;
+		this.m_max_channels = config.maxClients;
+		this.m_watchdog = new WriteWatchdog(config.writeTimeout);
+	}
+
+
+	@Override
+	public void start() {
+		m_running = true;
+		super.start();
+	}
+
+
+	/**
+	 * Check if this thread is running
+	 * @return boolean True if running, false otherwise
+	 */
+
+	public synchronized boolean isRunning() {
+		return this.m_running;
+	}
+
+
+	/**
+	 * Kill this thread
+	 */
+
+	public synchronized void kill() {
+		m_running = false;
+		this.m_watchdog.shutdown();
+		try {
+			if (this.m_socket != null)
+				this.m_socket.close();
+		}
+		catch (IOException sockerr) {
+		}
+		this.interrupt();
+	}
+
+
+	/**
+	 * ReverseConnectThread's main loop
+	 *
+	 * Connect to the workstation, serve the uplink until it is lost, then
+	 * wait and reconnect.
+	 */
+
+	public void run() {
+		long backoff = MIN_BACKOFF;
+
+		while (this.isRunning()) {
+			Socket sock = new Socket();
+			try {
+				synchronized (this) {
+					if (!this.m_running)
+						break;
+					this.m_socket = sock;
+				}
+				Logger.d(TAG, "Connecting to " + this.m_address + ":" + this.m_port);
+				sock.connect(new InetSocketAddress(this.m_address, this.m_port), CONNECT_TIMEOUT);
+				sock.setTcpNoDelay(true);
+				sock.setKeepAlive(true);
+				Logger.d(TAG, "Uplink established");
+				backoff = MIN_BACKOFF;
+				this.serve(sock);
+				Logger.d(TAG, "Uplink closed");
+			}
+			catch (IOException e) {
+				Logger.d(TAG, "Uplink error: " + e.getMessage());
+			}
+			finally {
+				this.closeChannels();
+				try {
+					sock.close();
+				}
+				catch (IOException sockerr) {
+				}
+			}
+
+			/* Wait before reconnecting */
+			if (!this.isRunning())
+				break;
+			try {
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+
+
+	/**
+	 * Read uplink frames and route them to their channel
+	 * @param sock the uplink socket
+	 */
+
+	private void serve(Socket sock) throws IOException {
+		Uplink uplink = new Uplink(sock);
+		FrameReader reader = new FrameReader(sock.getInputStream(), this.m_max_frame + 8);
+
+		while (this.isRunning()) {
+			int size = reader.readFrame();
+			if (size < 0)
+				return;
+			if (size < 4)
+				throw new ProtocolException("Bad uplink frame");
+
+			byte[] buf = reader.getBuffer();
+			int id = readInt(buf, 0);
+
+			/* Channel ID alone: close the channel */
+			if (size == 4)
+			{
+				UplinkChannel channel = this.m_channels.remove(Integer.valueOf(id));
+				if (channel != null)
+					channel.close();
+				continue;
+			}
+
+			int inner = readInt(buf, 4);
+			if ((size < 8) || (inner != size - 8))
+				throw new ProtocolException("Bad inner frame size");
+
+			UplinkChannel channel = this.m_channels.get(Integer.valueOf(id));
+			if (channel == null)
+			{
+				if (this.m_channels.size() >= this.m_max_channels)
+				{
+					/* Too many channels, refuse this one */
+					Logger.d(TAG, "Too many channels, channel " + id + " refused");
+					uplink.write(id, null, false);
+					continue;
+				}
+				Logger.d(TAG, "Channel " + id + " opened");
+				channel = new UplinkChannel(id, uplink);
+				this.m_channels.put(Integer.valueOf(id), channel);
+			}
+			channel.onFrame(buf, 8, inner);
+			/* The uplink is read by this thread only, so a channel whose
+			 * requests fill their queue holds the others until it drains */
+			try {
+				channel.awaitRoom();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Close every channel
+	 */
+
+	private void closeChannels() {
+		for (UplinkChannel channel : new ArrayList<UplinkChannel>(this.m_channels.values()))
+			channel.close();
+		this.m_channels.clear();
+	}
+
+
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+
+	/**
+	 * Get the workstation's address
+	 * @return String the address
+	 */
+
+	public String getAddress() {
+		return this.m_address;
+	}
+
+
+	/**
+	 * Get the workstation's port
+	 * @return int the port
+	 */
+
+	public int getPort() {
+		return this.m_port;
+	}
+}
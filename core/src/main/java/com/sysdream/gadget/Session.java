@@ -0,0 +1,424 @@
+package com.sysdream.gadget;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * Client session
+ *
+ * Holds the protocol options negotiated with a client. A client may send
+ * a handshake as its very first frame, always JSON encoded:
+ *
+ *   {"hello": {"encoding": "binary", "compression": "deflate", "threshold": 1024,
+ *              "chunk": 65536, "priority": "bulk"}}
+ *
+ * Gadget answers with a JSON response listing the options in use, then
+ * every following frame is encoded accordingly in both directions. Clients
+ * that do not send a handshake keep the default JSON encoding, without
+ * compression.
+ *
+ * When compression is enabled, each frame's payload starts with a flag
+ * byte: FLAG_RAW if the rest is not compressed, FLAG_DEFLATE if it is
+ * zlib-deflated. Gadget only compresses payloads of at least threshold
+ * bytes, clients may compress whichever frames they want.
+ *
+ * When chunk is set, responses bigger than chunk bytes are streamed as a
+ * sequence of frames of at most chunk bytes, all but the last having the
+ * FrameBuffer.MORE_CHUNKS bit set in their size header. The client
+ * concatenates their payloads to get the response's payload (starting
+ * with its compression flag, if any; streamed responses are always
+ * compressed when compression is enabled).
+ *
+ * priority is the default scheduling priority of the session's requests,
+ * "interactive" unless set, which requests may override.
+ */
+
+public class Session {
+
+	public final static byte FLAG_RAW = 0;
+	public final static byte FLAG_DEFLATE = 1;
+	private final static int DEFAULT_THRESHOLD = 1024;
+	private final static int MIN_CHUNK = 512;
+
+	private volatile Codec m_codec = JsonCodec.getInstance();
+	private volatile boolean m_compress = false;
+	private volatile int m_threshold = DEFAULT_THRESHOLD;
+	private volatile int m_chunk = 0;
+	private volatile int m_priority = Request.INTERACTIVE;
+	private Deflater m_deflater = null;
+	private Inflater m_inflater = null;
+	private byte[] m_inflated = null;
+	private final Object m_inflate_lock = new Object();
+	private boolean m_negotiating = true;
+	private JsonElement m_first = null;
+	private int m_max;
+
+
+	/**
+	 * Constructor
+	 * @param max the maximum size of a request payload, once inflated
+	 */
+
+	public Session(int max) {
+		this.m_max = max;
+	}
+
+
+	/**
+	 * Check if the handshake frame may still be received
+	 * @return boolean True until the first frame has been processed
+	 */
+
+	public boolean isNegotiating() {
+		return this.m_negotiating;
+	}
+
+
+	/**
+	 * Process the first frame of a connection. If it is a handshake, the
+	 * JSON encoded answer is written to out and the negotiated options are
+	 * applied to the following frames. Otherwise its parsed tree is kept
+	 * for the decodeRequest call that follows, so it is not parsed twice.
+	 *
+	 * @param buf buffer holding the payload
+	 * @param offset payload offset
+	 * @param length payload size
+	 * @param out the stream the handshake answer is written to
+	 * @return boolean True if the frame was a handshake, false if it must be processed as a request
+	 */
+
+	public boolean handshake(byte[] buf, int offset, int length, OutputStream out) throws IOException {
+		JsonObject hello;
+
+		this.m_negotiating = false;
+		try {
+			JsonElement root = JsonCodec.parse(buf, offset, length);
+			if (!root.isJsonObject() || !root.getAsJsonObject().has("hello"))
+			{
+				this.m_first = root;
+				return false;
+			}
+			hello = root.getAsJsonObject().getAsJsonObject("hello");
+		}
+		catch (IOException e) {
+			return false;
+		}
+		catch (RuntimeException e) {
+			/* Not JSON, nor a request then: its ID cannot be read to answer it */
+			return false;
+		}
+
+		Response resp = this.negotiate(hello);
+		JsonCodec.getInstance().encodeResponse(resp, out);
+		if (resp.success)
+			this.apply(hello);
+		return true;
+	}
+
+
+	/**
+	 * Check requested options
+	 * @param hello the handshake options
+	 * @return Response the handshake answer
+	 */
+
+	private Response negotiate(JsonObject hello) {
+		LinkedHashMap<String, Object> options = new LinkedHashMap<String, Object>();
+
+		if (hello == null)
+			return new Response("Bad handshake", false);
+
+		String encoding = getString(hello, "encoding", this.m_codec.getName());
+		if (getCodec(encoding) == null)
+			return new Response("Unsupported encoding " + encoding, false);
+		options.put("encoding", encoding);
+
+		String compression = getString(hello, "compression", "none");
+		if (!compression.equals("none") && !compression.equals("deflate"))
+			return new Response("Unsupported compression " + compression, false);
+		options.put("compression", compression);
+		if (compression.equals("deflate"))
+		{
+			int threshold = getInt(hello, "threshold", DEFAULT_THRESHOLD);
+			if (threshold < 0)
+				return new Response("Bad threshold", false);
+			options.put("threshold", Integer.valueOf(threshold));
+		}
+
+		int chunk = getInt(hello, "chunk", 0);
+		if ((chunk != 0) && (chunk < MIN_CHUNK))
+			return new Response("Chunk size must be 0 or at least " + MIN_CHUNK, false);
+		options.put("chunk", Integer.valueOf(chunk));
+
+		String priority = getString(hello, "priority", Request.PRIORITIES[Request.INTERACTIVE]);
+		if (Request.parsePriority(priority) < 0)
+			return new Response("Unknown priority " + priority, false);
+		options.put("priority", priority);
+
+		return new Response(options, true);
+	}
+
+
+	/**
+	 * Apply negotiated options
+	 * @param hello the handshake options
+	 */
+
+	private void apply(JsonObject hello) {
+		this.m_codec = getCodec(getString(hello, "encoding", this.m_codec.getName()));
+		if (getString(hello, "compression", "none").equals("deflate"))
+		{
+			this.m_threshold = getInt(hello, "threshold", DEFAULT_THRESHOLD);
+			this.m_deflater = new Deflater(Deflater.BEST_SPEED);
+			this.m_inflater = new Inflater();
+			this.m_compress = true;
+		}
+		this.m_chunk = getInt(hello, "chunk", 0);
+		this.m_priority = Request.parsePriority(getString(hello, "priority", Request.PRIORITIES[Request.INTERACTIVE]));
+	}
+
+
+	/**
+	 * Release compression resources, once the connection is closed
+	 */
+
+	public void close() {
+		synchronized (this) {
+			if (this.m_deflater != null)
+				this.m_deflater.end();
+			this.m_deflater = null;
+		}
+		synchronized (this.m_inflate_lock) {
+			if (this.m_inflater != null)
+				this.m_inflater.end();
+			this.m_inflater = null;
+		}
+	}
+
+
+	/**
+	 * Get the codec used by this session
+	 * @return Codec the negotiated codec
+	 */
+
+	public Codec getCodec() {
+		return this.m_codec;
+	}
+
+
+	/**
+	 * Decode a request with the negotiated codec
+	 * @param buf buffer holding the payload
+	 * @param offset payload offset
+	 * @param length payload size
+	 * @return Request the request, null if malformed
+	 */
+
+	public Request decodeRequest(byte[] buf, int offset, int length) {
+		long start = System.nanoTime();
+		Request req = this.decode(buf, offset, length);
+		if ((req != null) && (req.priority < 0))
+			req.priority = this.m_priority;
+		Metrics.getInstance().received(length);
+		Metrics.getInstance().record(Metrics.DECODE, start);
+		return req;
+	}
+
+
+	private Request decode(byte[] buf, int offset, int length) {
+		/* Legacy first frame, parsed while looking for a handshake */
+		JsonElement first = this.m_first;
+		if (first != null)
+		{
+			this.m_first = null;
+			return Request.fromJsonTree(first);
+		}
+		if (!this.m_compress)
+			return this.m_codec.decodeRequest(buf, offset, length);
+
+		if (length < 1)
+			return null;
+		if (buf[offset] == FLAG_RAW)
+			return this.m_codec.decodeRequest(buf, offset + 1, length - 1);
+		if (buf[offset] != FLAG_DEFLATE)
+			return null;
+
+		synchronized (this.m_inflate_lock) {
+			if (this.m_inflater == null)
+				return null;
+			try {
+				int size = this.inflate(buf, offset + 1, length - 1);
+				return this.m_codec.decodeRequest(this.m_inflated, 0, size);
+			}
+			catch (DataFormatException e) {
+				return null;
+			}
+		}
+	}
+
+
+	/**
+	 * Inflate a compressed payload into the session's inflate buffer
+	 * @return int the inflated size
+	 */
+
+	private int inflate(byte[] buf, int offset, int length) throws DataFormatException {
+		if (this.m_inflated == null)
+			this.m_inflated = new byte[Math.min(Math.max(4096, length * 4), this.m_max)];
+		this.m_inflater.setInput(buf, offset, length);
+		int size = 0;
+		try {
+			while (!this.m_inflater.finished()) {
+				if (size == this.m_inflated.length)
+				{
+					if (size >= this.m_max)
+						throw new DataFormatException("Payload too large");
+					byte[] bigger = new byte[Math.min(this.m_inflated.length * 2, this.m_max)];
+					System.arraycopy(this.m_inflated, 0, bigger, 0, size);
+					this.m_inflated = bigger;
+				}
+				int n = this.m_inflater.inflate(this.m_inflated, size, this.m_inflated.length - size);
+				if ((n == 0) && (this.m_inflater.needsInput() || this.m_inflater.needsDictionary()))
+					throw new DataFormatException("Truncated payload");
+				size += n;
+			}
+		}
+		finally {
+			this.m_inflater.reset();
+		}
+		return size;
+	}
+
+
+	/**
+	 * Encode a response with the negotiated codec and send it, compressing
+	 * and streaming it as negotiated. Responses to a same client must not
+	 * be written concurrently, so that chunks do not interleave.
+	 *
+	 * @param resp the response to send
+	 * @param out the frame buffer to encode into
+	 * @param sink where frames are sent
+	 */
+
+	public void writeResponse(Response resp, FrameBuffer out, FrameSink sink) throws IOException {
+		long start = System.nanoTime();
+		try {
+			this.write(resp, out, sink);
+		}
+		finally {
+			Metrics.getInstance().record(Metrics.WRITE, start);
+		}
+	}
+
+
+	private void write(Response resp, FrameBuffer out, FrameSink sink) throws IOException {
+		out.reset();
+		if (this.m_chunk <= 0)
+		{
+			this.encodeResponse(resp, out);
+			sink.sendFrame(out, false);
+			return;
+		}
+
+		if (!this.m_compress)
+		{
+			ChunkedOutputStream chunks = new ChunkedOutputStream(out, sink, this.m_chunk, null);
+			this.m_codec.encodeResponse(resp, chunks);
+			chunks.finish();
+			if (!chunks.isStreaming())
+				sink.sendFrame(out, false);
+			return;
+		}
+
+		/* The session's deflater is held for the whole streamed response */
+		synchronized (this) {
+			if (this.m_deflater == null)
+				throw new IOException("Session closed");
+			out.write(FLAG_RAW);
+			ChunkedOutputStream chunks = new ChunkedOutputStream(out, sink, this.m_chunk, this.m_deflater);
+			this.m_codec.encodeResponse(resp, chunks);
+			chunks.finish();
+			if (chunks.isStreaming())
+				return;
+
+			/* Fits in a single frame, compress if above threshold */
+			if (out.payloadSize() - 1 >= this.m_threshold)
+			{
+				out.deflate(1, this.m_deflater);
+				out.setByte(0, FLAG_DEFLATE);
+			}
+		}
+		sink.sendFrame(out, false);
+	}
+
+
+	/**
+	 * Encode a response in a single frame with the negotiated codec,
+	 * compressing it if needed
+	 * @param resp the response to encode
+	 * @param out the frame buffer to write to
+	 */
+
+	private void encodeResponse(Response resp, FrameBuffer out) throws IOException {
+		if (!this.m_compress)
+		{
+			this.m_codec.encodeResponse(resp, out);
+			return;
+		}
+
+		/* Flag byte, then compress the payload in place if large enough */
+		out.write(FLAG_RAW);
+		this.m_codec.encodeResponse(resp, out);
+		if (out.payloadSize() - 1 >= this.m_threshold)
+		{
+			synchronized (this) {
+				/* Session closed meanwhile, keep it raw */
+				if (this.m_deflater == null)
+					return;
+				out.deflate(1, this.m_deflater);
+			}
+			out.setByte(0, FLAG_DEFLATE);
+		}
+	}
+
+
+	/**
+	 * Find a codec by name
+	 * @param name the codec name
+	 * @return Codec the codec, null if unknown
+	 */
+
+	public static Codec getCodec(String name) {
+		if (JsonCodec.getInstance().getName().equals(name))
+			return JsonCodec.getInstance();
+		if (BinaryCodec.getInstance().getName().equals(name))
+			return BinaryCodec.getInstance();
+		return null;
+	}
+
+
+	private static int getInt(JsonObject options, String name, int defaultValue) {
+		try {
+			if (options.has(name) && options.get(name).isJsonPrimitive())
+				return options.get(name).getAsInt();
+		}
+		catch (NumberFormatException e) {
+		}
+		return defaultValue;
+	}
+
+
+	private static String getString(JsonObject options, String name, String defaultValue) {
+		if (options.has(name) && options.get(name).isJsonPrimitive())
+			return options.get(name).getAsString();
+		return defaultValue;
+	}
+}
@@ -0,0 +1,197 @@
+package com.sysdream.gadget;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Subscriptions
+ *
+ * Lets clients watch a call's result instead of polling it themselves.
+ * Gadget polls the call on their behalf at the subscription's interval,
+ * and pushes the new result only when it differs from the previous one.
+ * Pushed responses carry the subscription request's ID. The timer only
+ * schedules polls: they are submitted to the dispatcher as bulk calls of
+ * the subscribed client, subject to its limits and to a deadline like any
+ * other call. A poll is skipped while the previous one is still running,
+ * or when the dispatcher turns it down.
+ */
+
+public class Subscriptions {
+
+	/**
+	 * Watched call
+	 */
+
+	private class Subscription implements Runnable, Dispatcher.Callback {
+		final Dispatcher.Client client;
+		final Integer id;
+		final Request call;
+		private volatile String m_last;
+		private AtomicBoolean m_polling = new AtomicBoolean(false);
+		private volatile ScheduledFuture<?> m_timer = null;
+
+		Subscription(Dispatcher.Client client, Integer id, Request call, String last) {
+			this.client = client;
+			this.id = id;
+			this.call = call;
+			this.m_last = last;
+		}
+
+		/**
+		 * Timer side: submit a poll to the dispatcher
+		 */
+
+		public void run() {
+			if (this.client.isClosed())
+			{
+				Subscriptions.this.cancel(this);
+				return;
+			}
+			if (!this.m_polling.compareAndSet(false, true))
+				return;
+
+			/* Throttled or busy, retry on next tick */
+			if (Subscriptions.this.m_dispatcher.trySubmit(this.client, this.call, this) != null)
+				this.m_polling.set(false);
+		}
+
+		/**
+		 * Dispatcher side: push the poll's result if it changed
+		 */
+
+		public void onResponse(Response resp) {
+			try {
+				this.poll(resp);
+			}
+			finally {
+				this.m_polling.set(false);
+			}
+		}
+
+		private void poll(Response resp) {
+			/* Unsubscribed while polling */
+			if (!Subscriptions.this.m_subscriptions.contains(this))
+				return;
+			String digest = digest(resp);
+			if (digest.equals(this.m_last))
+				return;
+			this.m_last = digest;
+			resp.id = this.id;
+			if (!this.client.push(resp))
+				Subscriptions.this.cancel(this);
+		}
+	}
+
+
+	private IRequestHandler m_handler;
+	private Dispatcher m_dispatcher;
+	private GadgetConfig m_config;
+	private ScheduledThreadPoolExecutor m_timer = new ScheduledThreadPoolExecutor(1);
+	private CopyOnWriteArrayList<Subscription> m_subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+
+	/**
+	 * Constructor
+	 * @param handler the handler running watched calls
+	 * @param dispatcher the dispatcher running polls
+	 * @param config polling intervals and limits
+	 */
+
+	public Subscriptions(IRequestHandler handler, Dispatcher dispatcher, GadgetConfig config) {
+		this.m_handler = handler;
+		this.m_dispatcher = dispatcher;
+		this.m_config = config;
+	}
+
+
+	/**
+	 * Process a subscription request: run the watched call once, and start
+	 * polling it
+	 * @param req the subscription request
+	 * @return Response the call's current result, or an error
+	 */
+
+	public Response subscribe(Request req) {
+		if ((req.client == null) || (req.id == null))
+			return new Response("Subscriptions must be tagged", false);
+		if (this.find(req.client, req.id) != null)
+			return new Response("Subscription ID already in use", false);
+
+		int count = 0;
+		for (Subscription sub : this.m_subscriptions)
+			if (sub.client == req.client)
+				count++;
+		if (count >= this.m_config.maxSubscriptions)
+			return new Response("Too many subscriptions", false);
+
+		int interval = (req.interval > 0) ? req.interval : this.m_config.pollInterval;
+		interval = Math.max(interval, this.m_config.minPollInterval);
+
+		req.watched.client = req.client;
+		Response resp = this.m_handler.handleRequest(req.watched);
+
+		/* Polls run in the bulk lane, with the subscription's deadline if set */
+		req.watched.priority = Request.BULK;
+		req.watched.timeout = req.timeout;
+		Subscription sub = new Subscription(req.client, req.id, req.watched, digest(resp));
+		this.m_subscriptions.add(sub);
+		sub.m_timer = this.m_timer.scheduleWithFixedDelay(sub, interval, interval, TimeUnit.MILLISECONDS);
+		return resp;
+	}
+
+
+	/**
+	 * Cancel a subscription
+	 * @param client the subscribed client
+	 * @param id the subscription request's ID
+	 * @return boolean True if the subscription existed
+	 */
+
+	public boolean unsubscribe(Dispatcher.Client client, Integer id) {
+		Subscription sub = this.find(client, id);
+		if (sub == null)
+			return false;
+		this.cancel(sub);
+		return true;
+	}
+
+
+	/**
+	 * Stop polling
+	 */
+
+	public void shutdown() {
+		this.m_timer.shutdownNow();
+		this.m_subscriptions.clear();
+	}
+
+
+	private Subscription find(Dispatcher.Client client, Integer id) {
+		for (Subscription sub : this.m_subscriptions)
+			if ((sub.client == client) && sub.id.equals(id))
+				return sub;
+		return null;
+	}
+
+
+	private void cancel(Subscription sub) {
+		this.m_subscriptions.remove(sub);
+		if (sub.m_timer != null)
+			sub.m_timer.cancel(false);
+	}
+
+
+	/**
+	 * Summarize a result, to detect changes
+	 * @param resp the call's response
+	 * @return String the response's JSON form
+	 */
+
+	private static String digest(Response resp) {
+		return resp.success + JsonCodec.GSON.toJson(resp.response);
+	}
+}
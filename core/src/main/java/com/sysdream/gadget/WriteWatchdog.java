@@ -0,0 +1,120 @@
+package com.sysdream.gadget;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Write watchdog
+ *
+ * Bounds the time transports writing to blocking sockets wait for a client
+ * that does not read: a write still blocked past the write timeout has its
+ * connection closed, which fails it, so that the thread writing is freed
+ * and the others do not queue up behind it. The non-blocking transport
+ * bounds its writes by itself (see NioServerThread).
+ *
+ * Writes are checked by a single periodic sweep rather than a timer per
+ * write.
+ */
+
+public class WriteWatchdog {
+
+	private final static String TAG = "WriteWatchdog";
+	private final static long MIN_TICK = 100;
+
+	/**
+	 * Connection whose writes are watched
+	 */
+
+	public interface Target {
+
+		/**
+		 * Close the connection, a write to it has been blocked too long.
+		 * Called from the watchdog's thread while the write is blocked.
+		 */
+
+		public void onWriteTimeout();
+	}
+
+	private long m_timeout;
+	private ConcurrentHashMap<Target, Long> m_writes = new ConcurrentHashMap<Target, Long>();
+	private ScheduledThreadPoolExecutor m_timer = null;
+
+
+	/**
+	 * Constructor
+	 * @param timeout how long a write may block (ms), 0 to wait forever
+	 */
+
+	public WriteWatchdog(long timeout) {
+		this.m_timeout = timeout;
+		if (timeout <= 0)
+			return;
+		long tick = Math.max(MIN_TICK, timeout / 4);
+		this.m_timer = new ScheduledThreadPoolExecutor(1);
+		this.m_timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				WriteWatchdog.this.sweep();
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Start watching a write. A target has one write at a time, callers
+	 * hold their connection's write lock.
+	 * @param target the connection written to
+	 */
+
+	public void begin(Target target) {
+		if (this.m_timer != null)
+			this.m_writes.put(target, Long.valueOf(System.nanoTime()));
+	}
+
+
+	/**
+	 * Stop watching a write, once done or failed
+	 * @param target the connection written to
+	 */
+
+	public void end(Target target) {
+		if (this.m_timer != null)
+			this.m_writes.remove(target);
+	}
+
+
+	/**
+	 * Close the connections whose write has been blocked too long
+	 */
+
+	private void sweep() {
+		long now = System.nanoTime();
+		for (Map.Entry<Target, Long> write : this.m_writes.entrySet())
+		{
+			if ((now - write.getValue().longValue()) / 1000000L < this.m_timeout)
+				continue;
+			/* Unless it ended meanwhile */
+			if (!this.m_writes.remove(write.getKey(), write.getValue()))
+				continue;
+			Logger.d(TAG, "Client not reading, disconnecting");
+			try {
+				write.getKey().onWriteTimeout();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Stop the sweep
+	 */
+
+	public void shutdown() {
+		if (this.m_timer != null)
+			this.m_timer.shutdownNow();
+	}
+}
@@ -0,0 +1,222 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.JsonParser;
+
+
+public class BinaryCodecTest {
+
+	private final BinaryCodec m_codec = BinaryCodec.getInstance();
+
+
+	/**
+	 * Binary request writer, as a client would encode requests
+	 */
+
+	private static class Writer {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(this.raw);
+
+		Writer array(int count) throws IOException {
+			this.out.writeByte(BinaryCodec.TAG_ARRAY);
+			this.out.writeInt(count);
+			return this;
+		}
+
+		Writer map(int count) throws IOException {
+			this.out.writeByte(BinaryCodec.TAG_MAP);
+			this.out.writeInt(count);
+			return this;
+		}
+
+		Writer key(String key) throws IOException {
+			byte[] data = key.getBytes("UTF-8");
+			this.out.writeInt(data.length);
+			this.out.write(data);
+			return this;
+		}
+
+		Writer string(String value) throws IOException {
+			this.out.writeByte(BinaryCodec.TAG_STRING);
+			return this.key(value);
+		}
+
+		Writer integer(int value) throws IOException {
+			this.out.writeByte(BinaryCodec.TAG_INT);
+			this.out.writeInt(value);
+			return this;
+		}
+
+		byte[] bytes() {
+			return this.raw.toByteArray();
+		}
+	}
+
+
+	/**
+	 * Read an encoded value back into plain Java objects
+	 */
+
+	private static Object read(ByteBuffer in) throws IOException {
+		byte tag = in.get();
+		switch (tag) {
+			case BinaryCodec.TAG_NULL:
+				return null;
+			case BinaryCodec.TAG_FALSE:
+				return Boolean.FALSE;
+			case BinaryCodec.TAG_TRUE:
+				return Boolean.TRUE;
+			case BinaryCodec.TAG_INT:
+				return Integer.valueOf(in.getInt());
+			case BinaryCodec.TAG_LONG:
+				return Long.valueOf(in.getLong());
+			case BinaryCodec.TAG_DOUBLE:
+				return Double.valueOf(in.getDouble());
+			case BinaryCodec.TAG_STRING:
+				return readString(in);
+			case BinaryCodec.TAG_ARRAY:
+				List<Object> list = new ArrayList<Object>();
+				for (int i=in.getInt(); i>0; i--)
+					list.add(read(in));
+				return list;
+			case BinaryCodec.TAG_MAP:
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for (int i=in.getInt(); i>0; i--)
+				{
+					String key = readString(in);
+					map.put(key, read(in));
+				}
+				return map;
+			default:
+				throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+
+	private static String readString(ByteBuffer in) throws IOException {
+		byte[] data = new byte[in.getInt()];
+		in.get(data);
+		return new String(data, "UTF-8");
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> encode(Response resp) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		this.m_codec.encodeResponse(resp, out);
+		ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+		Object value = read(in);
+		assertEquals(0, in.remaining());
+		return (Map<String, Object>)value;
+	}
+
+
+	@Test
+	public void decodesLegacyCall() throws IOException {
+		byte[] raw = new Writer().array(2).string("com.example").string("listApps").bytes();
+		Request req = this.m_codec.decodeRequest(raw, 0, raw.length);
+		assertEquals("com.example", req.app);
+		assertEquals("listApps", req.method);
+		assertNull(req.id);
+	}
+
+
+	@Test
+	public void decodesTaggedCallAtOffset() throws IOException {
+		byte[] body = new Writer().map(3).key("id").integer(42)
+				.key("call").array(3).string("com.example").string("connectApp").integer(7)
+				.key("priority").string("bulk").bytes();
+		byte[] raw = new byte[body.length + 3];
+		System.arraycopy(body, 0, raw, 3, body.length);
+		Request req = this.m_codec.decodeRequest(raw, 3, body.length);
+		assertEquals(Integer.valueOf(42), req.id);
+		assertEquals("connectApp", req.method);
+		assertEquals(Request.BULK, req.priority);
+		assertEquals(1, req.parameters.length);
+	}
+
+
+	@Test
+	public void rejectsMalformedPayloads() throws IOException {
+		byte[] truncated = new Writer().array(2).string("com.example").bytes();
+		assertNull(this.m_codec.decodeRequest(truncated, 0, truncated.length));
+		byte[] unknown = new byte[] { 42 };
+		assertNull(this.m_codec.decodeRequest(unknown, 0, unknown.length));
+		byte[] badString = new Writer().array(1).integer(0).bytes();
+		badString[5] = BinaryCodec.TAG_STRING;
+		assertNull(this.m_codec.decodeRequest(badString, 0, badString.length));
+	}
+
+
+	@Test
+	public void answersMalformedTaggedRequests() throws IOException {
+		byte[] raw = new Writer().map(2).key("id").integer(9)
+				.key("call").array(2).string("com.example").string("noSuchMethod").bytes();
+		Request req = this.m_codec.decodeRequest(raw, 0, raw.length);
+		assertTrue(req.malformed);
+		assertEquals(Integer.valueOf(9), req.id);
+	}
+
+
+	@Test
+	public void encodesResponseFields() throws IOException {
+		Response resp = new Response("done", true);
+		Map<String, Object> map = this.encode(resp);
+		assertEquals(2, map.size());
+		assertEquals(Boolean.TRUE, map.get("success"));
+		assertEquals("done", map.get("response"));
+
+		resp.id = Integer.valueOf(3);
+		map = this.encode(resp);
+		assertEquals(Integer.valueOf(3), map.get("id"));
+	}
+
+
+	@Test
+	public void encodesValues() throws IOException {
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("int", Integer.valueOf(1));
+		value.put("long", Long.valueOf(1L << 40));
+		value.put("double", Double.valueOf(0.5));
+		value.put("null", null);
+		value.put("array", new String[] { "a", "b" });
+		value.put("json", JsonParser.parseString("[2, 2.5, true]"));
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> map = (Map<String, Object>)this.encode(new Response(value, false)).get("response");
+		assertEquals(Integer.valueOf(1), map.get("int"));
+		assertEquals(Long.valueOf(1L << 40), map.get("long"));
+		assertEquals(Double.valueOf(0.5), map.get("double"));
+		assertTrue(map.containsKey("null"));
+		assertNull(map.get("null"));
+		assertArrayEquals(new Object[] { "a", "b" }, ((List<?>)map.get("array")).toArray());
+		/* Integral JSON numbers stay integral */
+		assertArrayEquals(new Object[] { Integer.valueOf(2), Double.valueOf(0.5 * 5), Boolean.TRUE },
+				((List<?>)map.get("json")).toArray());
+	}
+
+
+	@Test
+	public void encodesBatchResponses() throws IOException {
+		Response[] results = new Response[] { new Response("a", true), new Response("Bad request", false) };
+		List<?> list = (List<?>)this.encode(new Response(results, true)).get("response");
+		assertEquals(2, list.size());
+		assertEquals("Bad request", ((Map<?, ?>)list.get(1)).get("response"));
+		assertEquals(Boolean.FALSE, ((Map<?, ?>)list.get(1)).get("success"));
+	}
+}
@@ -0,0 +1,132 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class ChannelTest {
+
+	/**
+	 * Channel keeping its frames and pauses
+	 */
+
+	private static class TestChannel extends Channel {
+		final BlockingQueue<String> frames = new LinkedBlockingQueue<String>();
+		final ArrayList<Boolean> pauses = new ArrayList<Boolean>();
+
+		TestChannel(Dispatcher dispatcher, int maxPending) {
+			super(dispatcher, 1024, maxPending);
+		}
+
+		public void sendFrame(FrameBuffer frame, boolean more) throws IOException {
+			byte[] raw = frame.toByteArray();
+			this.frames.add(new String(raw, 4, raw.length - 4, "UTF-8"));
+		}
+
+		@Override
+		protected synchronized void pause(boolean paused) {
+			this.pauses.add(Boolean.valueOf(paused));
+		}
+
+		synchronized boolean paused() {
+			return !this.pauses.isEmpty() && this.pauses.get(this.pauses.size() - 1).booleanValue();
+		}
+
+		String take() throws InterruptedException {
+			String frame = this.frames.poll(5, TimeUnit.SECONDS);
+			assertNotNull("no response", frame);
+			return frame;
+		}
+	}
+
+
+	private final CountDownLatch m_release = new CountDownLatch(1);
+	private final AtomicInteger m_calls = new AtomicInteger();
+	private Dispatcher m_dispatcher = new Dispatcher(new IRequestHandler() {
+		public Response handleRequest(Request req) {
+			int call = ChannelTest.this.m_calls.incrementAndGet();
+			try {
+				ChannelTest.this.m_release.await();
+			}
+			catch (InterruptedException e) {
+				return new Response("Interrupted", false);
+			}
+			Response resp = new Response(Integer.valueOf(call), true);
+			resp.id = req.id;
+			return resp;
+		}
+	}, new GadgetConfig());
+
+
+	@After
+	public void stop() {
+		this.m_release.countDown();
+		this.m_dispatcher.shutdown();
+	}
+
+
+	private static void feed(Channel channel, String json) throws IOException {
+		byte[] frame = json.getBytes("UTF-8");
+		channel.onFrame(frame, 0, frame.length);
+	}
+
+
+	@Test
+	public void pausesOnceUntaggedRequestsFillTheQueue() throws Exception {
+		TestChannel channel = new TestChannel(this.m_dispatcher, 3);
+
+		/* One running, then three waiting */
+		for (int i=0; i<3; i++)
+		{
+			feed(channel, "[\"a\", \"listApps\"]");
+			assertFalse(channel.paused());
+		}
+		feed(channel, "[\"a\", \"listApps\"]");
+		assertTrue(channel.paused());
+
+		/* Answered in order, reading resumes once there is room */
+		this.m_release.countDown();
+		for (int i=1; i<=4; i++)
+			assertTrue(channel.take().contains("\"response\":" + i));
+		channel.awaitRoom();
+		assertFalse(channel.paused());
+		assertEquals(2, channel.pauses.size());
+		channel.close();
+	}
+
+
+	@Test
+	public void closingWakesTheReader() throws Exception {
+		final TestChannel channel = new TestChannel(this.m_dispatcher, 1);
+		feed(channel, "[\"a\", \"listApps\"]");
+		feed(channel, "[\"a\", \"listApps\"]");
+		assertTrue(channel.paused());
+
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+				}
+				channel.close();
+			}
+		});
+		closer.start();
+		channel.awaitRoom();
+		closer.join();
+	}
+}
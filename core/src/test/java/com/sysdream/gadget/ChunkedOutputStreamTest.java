@@ -0,0 +1,119 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+
+public class ChunkedOutputStreamTest {
+
+	/**
+	 * Keeps the payload of every frame sent
+	 */
+
+	private static class Frames implements FrameSink {
+		ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+		ArrayList<Boolean> more = new ArrayList<Boolean>();
+
+		public void sendFrame(FrameBuffer frame, boolean more) {
+			byte[] raw = frame.toByteArray();
+			byte[] payload = new byte[raw.length - 4];
+			System.arraycopy(raw, 4, payload, 0, payload.length);
+			this.payloads.add(payload);
+			this.more.add(Boolean.valueOf(more));
+		}
+
+		byte[] joined(int skip) {
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			for (byte[] payload : this.payloads)
+				all.write(payload, 0, payload.length);
+			byte[] raw = all.toByteArray();
+			byte[] data = new byte[raw.length - skip];
+			System.arraycopy(raw, skip, data, 0, data.length);
+			return data;
+		}
+	}
+
+
+	private static byte[] data(int size) {
+		byte[] data = new byte[size];
+		for (int i=0; i<size; i++)
+			data[i] = (byte)('a' + i % 7);
+		return data;
+	}
+
+
+	@Test
+	public void smallResponseStaysBuffered() throws IOException {
+		FrameBuffer buf = new FrameBuffer(64);
+		Frames sink = new Frames();
+		ChunkedOutputStream out = new ChunkedOutputStream(buf, sink, 16, null);
+		out.write(data(16));
+		out.finish();
+
+		assertFalse(out.isStreaming());
+		assertEquals(0, sink.payloads.size());
+		assertEquals(16, buf.payloadSize());
+	}
+
+
+	@Test
+	public void bigResponseIsStreamedInChunks() throws IOException {
+		FrameBuffer buf = new FrameBuffer(64);
+		Frames sink = new Frames();
+		ChunkedOutputStream out = new ChunkedOutputStream(buf, sink, 16, null);
+		byte[] data = data(40);
+		out.write(data, 0, 10);
+		out.write(data, 10, 30);
+		out.finish();
+
+		assertTrue(out.isStreaming());
+		assertEquals(3, sink.payloads.size());
+		assertEquals(16, sink.payloads.get(0).length);
+		assertEquals(16, sink.payloads.get(1).length);
+		assertEquals(8, sink.payloads.get(2).length);
+		assertEquals(Boolean.TRUE, sink.more.get(0));
+		assertEquals(Boolean.TRUE, sink.more.get(1));
+		assertEquals(Boolean.FALSE, sink.more.get(2));
+		assertArrayEquals(data, sink.joined(0));
+	}
+
+
+	@Test
+	public void streamedResponseIsCompressed() throws IOException, DataFormatException {
+		FrameBuffer buf = new FrameBuffer(64);
+		buf.write(Session.FLAG_RAW);
+		Frames sink = new Frames();
+		Deflater deflater = new Deflater();
+		ChunkedOutputStream out = new ChunkedOutputStream(buf, sink, 32, deflater);
+		byte[] data = data(5000);
+		for (int i=0; i<data.length; i+=100)
+			out.write(data, i, 100);
+		out.finish();
+
+		assertTrue(out.isStreaming());
+		assertTrue(sink.payloads.size() > 1);
+		assertEquals(Session.FLAG_DEFLATE, sink.payloads.get(0)[0]);
+		assertEquals(Boolean.FALSE, sink.more.get(sink.more.size() - 1));
+
+		/* The flag byte, then a single deflate stream across chunks */
+		byte[] compressed = sink.joined(1);
+		assertTrue(compressed.length < data.length);
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		byte[] inflated = new byte[data.length];
+		assertEquals(data.length, inflater.inflate(inflated));
+		assertTrue(inflater.finished());
+		assertArrayEquals(data, inflated);
+	}
+}
@@ -0,0 +1,393 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class DispatcherTest {
+
+	/**
+	 * Handler whose calls block until released, tracking how many of them
+	 * run at once per application
+	 */
+
+	private static class Handler implements IRequestHandler {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger interrupted = new AtomicInteger();
+		final BlockingQueue<String> started = new LinkedBlockingQueue<String>();
+		private final Map<String, Integer> m_running = new HashMap<String, Integer>();
+		private final Map<String, Integer> m_peak = new HashMap<String, Integer>();
+
+		public Response handleRequest(Request req) {
+			Response resp = this.call(req);
+			resp.id = req.id;
+			return resp;
+		}
+
+		private Response call(Request req) {
+			this.calls.incrementAndGet();
+			if (!req.method.equals("block"))
+				return new Response(req.app + "." + req.method, true);
+
+			this.enter(req.app, 1);
+			this.started.add(req.app);
+			try {
+				this.release.await();
+				return new Response(req.app, true);
+			}
+			catch (InterruptedException e) {
+				this.interrupted.incrementAndGet();
+				return new Response("Interrupted", false);
+			}
+			finally {
+				this.enter(req.app, -1);
+			}
+		}
+
+		private synchronized void enter(String app, int delta) {
+			Integer running = this.m_running.get(app);
+			int now = ((running == null) ? 0 : running.intValue()) + delta;
+			this.m_running.put(app, Integer.valueOf(now));
+			Integer peak = this.m_peak.get(app);
+			if ((peak == null) || (now > peak.intValue()))
+				this.m_peak.put(app, Integer.valueOf(now));
+		}
+
+		synchronized int peak(String app) {
+			Integer peak = this.m_peak.get(app);
+			return (peak == null) ? 0 : peak.intValue();
+		}
+	}
+
+
+	/**
+	 * Callback queueing responses for the test thread
+	 */
+
+	private static class Responses implements Dispatcher.Callback {
+		final BlockingQueue<Response> queue = new LinkedBlockingQueue<Response>();
+
+		public void onResponse(Response resp) {
+			this.queue.add(resp);
+		}
+
+		Response take() throws InterruptedException {
+			Response resp = this.queue.poll(5, TimeUnit.SECONDS);
+			assertNotNull("no response", resp);
+			return resp;
+		}
+	}
+
+
+	private Handler m_handler = new Handler();
+	private Responses m_responses = new Responses();
+	private Dispatcher.Client m_client = new Dispatcher.Client(this.m_responses);
+	private Dispatcher m_dispatcher = null;
+
+
+	private Dispatcher start(GadgetConfig config) {
+		this.m_dispatcher = new Dispatcher(this.m_handler, config);
+		return this.m_dispatcher;
+	}
+
+
+	@After
+	public void stop() {
+		this.m_handler.release.countDown();
+		if (this.m_dispatcher != null)
+			this.m_dispatcher.shutdown();
+	}
+
+
+	private static Request request(String app, String method, Integer id) {
+		Request req = new Request(app, method, new Object[0], new Class<?>[0]);
+		req.id = id;
+		return req;
+	}
+
+
+	@Test
+	public void capsConcurrencyPerApplication() throws InterruptedException {
+		GadgetConfig config = new GadgetConfig();
+		config.workerThreads = 4;
+		config.appConcurrency = 2;
+		Dispatcher dispatcher = this.start(config);
+
+		for (int i=0; i<6; i++)
+			assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(i)), this.m_responses));
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+
+		/* Another application is served while the first one is at its cap */
+		assertNull(dispatcher.trySubmit(this.m_client, request("b", "get", Integer.valueOf(10)), this.m_responses));
+		Response resp = this.m_responses.take();
+		assertEquals("b.get", resp.response);
+		assertEquals(Integer.valueOf(10), resp.id);
+
+		this.m_handler.release.countDown();
+		for (int i=0; i<6; i++)
+			assertTrue(this.m_responses.take().success);
+		assertEquals(2, this.m_handler.peak("a"));
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void expiresCallsPastTheirDeadline() throws InterruptedException {
+		Dispatcher dispatcher = this.start(new GadgetConfig());
+		Request req = request("a", "block", Integer.valueOf(1));
+		req.timeout = 200;
+		long start = System.nanoTime();
+		assertNull(dispatcher.trySubmit(this.m_client, req, this.m_responses));
+
+		Response resp = this.m_responses.take();
+		assertFalse(resp.success);
+		assertEquals("Timeout", resp.response);
+		assertEquals(Integer.valueOf(1), resp.id);
+		assertTrue(System.nanoTime() - start >= 200 * 1000000L);
+
+		/* The worker is interrupted, and its late response dropped */
+		Thread.sleep(200);
+		assertEquals(1, this.m_handler.interrupted.get());
+		assertNull(this.m_responses.queue.poll());
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void cancelsRunningCalls() throws InterruptedException {
+		Dispatcher dispatcher = this.start(new GadgetConfig());
+		assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(1)), this.m_responses));
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+
+		Request cancel = request(null, "cancel", Integer.valueOf(2));
+		cancel.parameters = new Object[] { Integer.valueOf(1) };
+		Response ack = dispatcher.trySubmit(this.m_client, cancel, this.m_responses);
+		assertEquals(Boolean.TRUE, ack.response);
+		assertEquals(Integer.valueOf(2), ack.id);
+
+		Response resp = this.m_responses.take();
+		assertEquals("Cancelled", resp.response);
+		assertEquals(Integer.valueOf(1), resp.id);
+
+		/* Nothing left to cancel */
+		ack = dispatcher.trySubmit(this.m_client, cancel, this.m_responses);
+		assertEquals(Boolean.FALSE, ack.response);
+	}
+
+
+	@Test
+	public void rejectsCallsOnceTheQueueIsFull() throws InterruptedException {
+		GadgetConfig config = new GadgetConfig();
+		config.workerThreads = 1;
+		config.workerQueue = 2;
+		config.appConcurrency = 1;
+		Dispatcher dispatcher = this.start(config);
+
+		assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(0)), this.m_responses));
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+		assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(1)), this.m_responses));
+		assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(2)), this.m_responses));
+		Response busy = dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(3)), this.m_responses);
+		assertEquals("Server busy", busy.response);
+		assertEquals(Integer.valueOf(3), busy.id);
+
+		this.m_handler.release.countDown();
+		for (int i=0; i<3; i++)
+			assertTrue(this.m_responses.take().success);
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void joinsBatchEntriesInOrder() throws InterruptedException {
+		Dispatcher dispatcher = this.start(new GadgetConfig());
+		Request batch = request(null, "batch", Integer.valueOf(7));
+		batch.batch = new Request[] { request("a", "get", null), null, request("b", "get", null) };
+		/* Answered right away if every entry is done before the last is queued */
+		Response resp = dispatcher.trySubmit(this.m_client, batch, this.m_responses);
+		if (resp == null)
+			resp = this.m_responses.take();
+		assertEquals(Integer.valueOf(7), resp.id);
+		Response[] results = (Response[])resp.response;
+		assertEquals(3, results.length);
+		assertEquals("a.get", results[0].response);
+		assertEquals("Bad request", results[1].response);
+		assertFalse(results[1].success);
+		assertEquals("b.get", results[2].response);
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void coalescesAllowlistedCallsOnly() throws Exception {
+		GadgetConfig config = new GadgetConfig();
+		config.workerThreads = 1;
+		config.coalescedMethods.add("block");
+		Dispatcher dispatcher = this.start(config);
+
+		for (int i=0; i<3; i++)
+		{
+			Request req = request("a", "block", Integer.valueOf(i));
+			req.target = Object.class.getMethod("toString");
+			assertNull(dispatcher.trySubmit(this.m_client, req, this.m_responses));
+		}
+		Request other = request("a", "get", Integer.valueOf(3));
+		other.target = Object.class.getMethod("toString");
+		assertNull(dispatcher.trySubmit(this.m_client, other, this.m_responses));
+
+		this.m_handler.release.countDown();
+		boolean[] answered = new boolean[4];
+		for (int i=0; i<4; i++)
+			answered[this.m_responses.take().id.intValue()] = true;
+		for (int i=0; i<4; i++)
+			assertTrue(answered[i]);
+
+		/* The identical calls ran once, the other one on its own */
+		assertEquals(2, this.m_handler.calls.get());
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void cancelledLeaderStillAnswersItsFollowers() throws Exception {
+		GadgetConfig config = new GadgetConfig();
+		config.workerThreads = 1;
+		config.appConcurrency = 1;
+		config.callTimeout = 0;
+		config.coalescedMethods.add("get");
+		Dispatcher dispatcher = this.start(config);
+
+		/* Keep the only worker busy, so that the next calls stay queued */
+		assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(0)), this.m_responses));
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+		for (int i=1; i<=2; i++)
+		{
+			Request req = request("a", "get", Integer.valueOf(i));
+			req.target = Object.class.getMethod("toString");
+			assertNull(dispatcher.trySubmit(this.m_client, req, this.m_responses));
+		}
+
+		Request cancel = request(null, "cancel", Integer.valueOf(9));
+		cancel.parameters = new Object[] { Integer.valueOf(1) };
+		assertEquals(Boolean.TRUE, dispatcher.trySubmit(this.m_client, cancel, this.m_responses).response);
+		Response resp = this.m_responses.take();
+		assertEquals("Cancelled", resp.response);
+		assertEquals(Integer.valueOf(1), resp.id);
+
+		/* Later identical calls still share the queued leader */
+		Request later = request("a", "get", Integer.valueOf(3));
+		later.target = Object.class.getMethod("toString");
+		assertNull(dispatcher.trySubmit(this.m_client, later, this.m_responses));
+
+		this.m_handler.release.countDown();
+		boolean[] answered = new boolean[4];
+		for (int i=0; i<3; i++)
+		{
+			resp = this.m_responses.take();
+			assertTrue(resp.success);
+			answered[resp.id.intValue()] = true;
+		}
+		assertTrue(answered[0] && answered[2] && answered[3]);
+		assertEquals(2, this.m_handler.calls.get());
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void cancelledLeaderAloneIsNotJoined() throws Exception {
+		GadgetConfig config = new GadgetConfig();
+		config.workerThreads = 1;
+		config.appConcurrency = 1;
+		config.callTimeout = 0;
+		config.coalescedMethods.add("get");
+		Dispatcher dispatcher = this.start(config);
+
+		assertNull(dispatcher.trySubmit(this.m_client, request("a", "block", Integer.valueOf(0)), this.m_responses));
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+		Request req = request("a", "get", Integer.valueOf(1));
+		req.target = Object.class.getMethod("toString");
+		assertNull(dispatcher.trySubmit(this.m_client, req, this.m_responses));
+
+		Request cancel = request(null, "cancel", Integer.valueOf(9));
+		cancel.parameters = new Object[] { Integer.valueOf(1) };
+		assertEquals(Boolean.TRUE, dispatcher.trySubmit(this.m_client, cancel, this.m_responses).response);
+		assertEquals("Cancelled", this.m_responses.take().response);
+
+		Request again = request("a", "get", Integer.valueOf(2));
+		again.target = Object.class.getMethod("toString");
+		assertNull(dispatcher.trySubmit(this.m_client, again, this.m_responses));
+		this.m_handler.release.countDown();
+		boolean[] answered = new boolean[3];
+		for (int i=0; i<2; i++)
+			answered[this.m_responses.take().id.intValue()] = true;
+		assertTrue(answered[0] && answered[2]);
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void runsBatchesBiggerThanTheQueue() throws InterruptedException {
+		GadgetConfig config = new GadgetConfig();
+		config.workerQueue = 4;
+		Dispatcher dispatcher = this.start(config);
+		Request batch = request(null, "batch", Integer.valueOf(1));
+		batch.batch = new Request[50];
+		for (int i=0; i<batch.batch.length; i++)
+			batch.batch[i] = request("a", "get", null);
+
+		Response resp = dispatcher.trySubmit(this.m_client, batch, this.m_responses);
+		if (resp == null)
+			resp = this.m_responses.take();
+		Response[] results = (Response[])resp.response;
+		assertEquals(50, results.length);
+		for (Response result : results)
+			assertEquals("a.get", result.response);
+		assertEquals(50, this.m_handler.calls.get());
+		assertEquals(0, this.m_client.getInFlight());
+	}
+
+
+	@Test
+	public void cancelledBatchAnswersOnce() throws InterruptedException {
+		GadgetConfig config = new GadgetConfig();
+		config.workerQueue = 2;
+		config.appConcurrency = 1;
+		Dispatcher dispatcher = this.start(config);
+		Request batch = request(null, "batch", Integer.valueOf(1));
+		batch.batch = new Request[10];
+		for (int i=0; i<batch.batch.length; i++)
+			batch.batch[i] = request("a", "block", null);
+		assertNull(dispatcher.trySubmit(this.m_client, batch, this.m_responses));
+		this.m_handler.started.poll(5, TimeUnit.SECONDS);
+
+		Request cancel = request(null, "cancel", Integer.valueOf(2));
+		cancel.parameters = new Object[] { Integer.valueOf(1) };
+		assertEquals(Boolean.TRUE, dispatcher.trySubmit(this.m_client, cancel, this.m_responses).response);
+		Response resp = this.m_responses.take();
+		assertEquals("Cancelled", resp.response);
+		assertEquals(Integer.valueOf(1), resp.id);
+
+		/* Entries not queued yet never run */
+		this.m_handler.release.countDown();
+		Thread.sleep(200);
+		assertNull(this.m_responses.queue.poll());
+		assertTrue(this.m_handler.calls.get() <= 2);
+		assertEquals(0, this.m_client.getInFlight());
+	}
+}
@@ -0,0 +1,113 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import org.junit.Test;
+
+
+public class FrameReaderTest {
+
+	private static byte[] frames(String... payloads) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(raw);
+		for (String payload : payloads)
+		{
+			byte[] data = payload.getBytes("UTF-8");
+			out.writeInt(data.length);
+			out.write(data);
+		}
+		return raw.toByteArray();
+	}
+
+
+	private static String payload(FrameReader reader, int size) throws IOException {
+		return new String(reader.getBuffer(), 0, size, "UTF-8");
+	}
+
+
+	/**
+	 * Returns at most one byte per read, as a slow socket may
+	 */
+
+	private static class TrickleStream extends InputStream {
+		private ByteArrayInputStream m_in;
+
+		TrickleStream(byte[] data) {
+			this.m_in = new ByteArrayInputStream(data);
+		}
+
+		public int read() {
+			return this.m_in.read();
+		}
+
+		public int read(byte[] b, int off, int len) {
+			return this.m_in.read(b, off, Math.min(len, 1));
+		}
+	}
+
+
+	@Test
+	public void readsConsecutiveFrames() throws IOException {
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(frames("first", "", "third")), 1024);
+		assertEquals("first", payload(reader, reader.readFrame()));
+		assertEquals(0, reader.readFrame());
+		assertEquals("third", payload(reader, reader.readFrame()));
+		assertEquals(-1, reader.readFrame());
+	}
+
+
+	@Test
+	public void copesWithPartialReads() throws IOException {
+		FrameReader reader = new FrameReader(new TrickleStream(frames("split", "frames")), 1024);
+		assertEquals("split", payload(reader, reader.readFrame()));
+		assertEquals("frames", payload(reader, reader.readFrame()));
+		assertEquals(-1, reader.readFrame());
+	}
+
+
+	@Test
+	public void growsForBigFrames() throws IOException {
+		StringBuilder big = new StringBuilder();
+		for (int i=0; i<20000; i++)
+			big.append((char)('a' + i % 26));
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(frames(big.toString(), "small")), 1 << 20);
+		assertEquals(big.toString(), payload(reader, reader.readFrame()));
+		assertEquals("small", payload(reader, reader.readFrame()));
+	}
+
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsOversizedFrames() throws IOException {
+		new FrameReader(new ByteArrayInputStream(frames("too long")), 4).readFrame();
+	}
+
+
+	@Test
+	public void rejectsTruncatedFrames() throws IOException {
+		byte[] data = frames("truncated");
+		byte[] cut = new byte[data.length - 3];
+		System.arraycopy(data, 0, cut, 0, cut.length);
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(cut), 1024);
+		try {
+			reader.readFrame();
+			fail("Truncated frame accepted");
+		}
+		catch (EOFException e) {
+		}
+	}
+
+
+	@Test(expected = EOFException.class)
+	public void rejectsTruncatedHeaders() throws IOException {
+		new FrameReader(new ByteArrayInputStream(new byte[] { 0, 0 }), 1024).readFrame();
+	}
+}
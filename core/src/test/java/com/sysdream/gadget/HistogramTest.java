@@ -0,0 +1,65 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class HistogramTest {
+
+	@Test
+	public void emptyHistogram() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(50));
+		assertEquals(Long.valueOf(0), h.snapshot().get("mean_us"));
+	}
+
+
+	@Test
+	public void smallValuesAreExact() {
+		Histogram h = new Histogram();
+		for (int i=1; i<=5; i++)
+			h.record(i * 1000L);
+		assertEquals(5, h.getCount());
+		assertEquals(3, h.getPercentile(50));
+		assertEquals(5, h.getPercentile(100));
+		assertEquals(Long.valueOf(3), h.snapshot().get("mean_us"));
+	}
+
+
+	@Test
+	public void percentilesWithinBucketPrecision() {
+		Histogram h = new Histogram();
+		for (int i=1; i<=1000; i++)
+			h.record(i * 1000000L);
+
+		/* Bucket upper bounds are at most 12.5% above the exact value */
+		long p50 = h.getPercentile(50);
+		long p99 = h.getPercentile(99);
+		assertTrue(p50 >= 500000 && p50 <= 562500);
+		assertTrue(p99 >= 990000 && p99 <= 1000000);
+		assertEquals(Long.valueOf(1000000), h.snapshot().get("max_us"));
+	}
+
+
+	@Test
+	public void percentileNeverExceedsMax() {
+		Histogram h = new Histogram();
+		h.record(1234567000L);
+		assertEquals(1234567, h.getPercentile(99));
+	}
+
+
+	@Test
+	public void hugeAndNegativeValuesAreClamped() {
+		Histogram h = new Histogram();
+		h.record(-5);
+		h.record(Long.MAX_VALUE);
+		assertEquals(2, h.getCount());
+		assertEquals(0, h.getPercentile(50));
+		/* Upper bound of the last bucket, about 19 hours */
+		assertEquals((1L << 36) - 1, h.getPercentile(100));
+	}
+}
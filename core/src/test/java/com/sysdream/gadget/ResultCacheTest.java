@@ -0,0 +1,71 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+
+public class ResultCacheTest {
+
+	private final ResultCache m_cache = new ResultCache(Collections.singleton("getMethods"), 1024);
+
+
+	@Test
+	public void storesResultsOfTheCurrentGeneration() {
+		int generation = this.m_cache.generation("a");
+		this.m_cache.put("a", "k", "result", generation);
+		assertEquals("result", this.m_cache.get("k")[0]);
+	}
+
+
+	@Test
+	public void dropsResultsOfAnInvalidatedGeneration() {
+		int generation = this.m_cache.generation("a");
+		int other = this.m_cache.generation("b");
+
+		/* The service is replaced while the call runs */
+		this.m_cache.invalidate("a");
+		this.m_cache.put("a", "k", "stale", generation);
+		assertNull(this.m_cache.get("k"));
+
+		/* Other applications are not affected */
+		this.m_cache.put("b", "j", "fresh", other);
+		assertNotNull(this.m_cache.get("j"));
+
+		this.m_cache.put("a", "k", "fresh", this.m_cache.generation("a"));
+		assertEquals("fresh", this.m_cache.get("k")[0]);
+	}
+
+
+	@Test
+	public void clearInvalidatesEveryGeneration() {
+		this.m_cache.invalidate("a");
+		int a = this.m_cache.generation("a");
+		int b = this.m_cache.generation("b");
+		this.m_cache.clear();
+		this.m_cache.put("a", "k", "stale", a);
+		this.m_cache.put("b", "j", "stale", b);
+		assertNull(this.m_cache.get("k"));
+		assertNull(this.m_cache.get("j"));
+	}
+
+
+	@Test
+	public void evictsLeastRecentlyUsedEntries() {
+		int generation = this.m_cache.generation("a");
+		StringBuilder big = new StringBuilder();
+		for (int i=0; i<400; i++)
+			big.append('x');
+		this.m_cache.put("a", "k1", big.toString(), generation);
+		this.m_cache.put("a", "k2", big.toString(), generation);
+		this.m_cache.get("k1");
+		this.m_cache.put("a", "k3", big.toString(), generation);
+		assertNotNull(this.m_cache.get("k1"));
+		assertNull(this.m_cache.get("k2"));
+		assertNotNull(this.m_cache.get("k3"));
+	}
+}
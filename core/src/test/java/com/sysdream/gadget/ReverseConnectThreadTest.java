@@ -0,0 +1,115 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class ReverseConnectThreadTest {
+
+	private ServerSocket m_workstation;
+	private Dispatcher m_dispatcher;
+	private ReverseConnectThread m_thread;
+
+
+	/**
+	 * Start Gadget against a workstation listening locally
+	 */
+
+	private Socket connect(GadgetConfig config, final int size) throws IOException {
+		this.m_workstation = new ServerSocket(0);
+		this.m_workstation.setSoTimeout(10000);
+		this.m_dispatcher = new Dispatcher(new IRequestHandler() {
+			public Response handleRequest(Request req) {
+				StringBuilder result = new StringBuilder();
+				for (int i=0; i<size; i++)
+					result.append('x');
+				Response resp = new Response(result.toString(), true);
+				resp.id = req.id;
+				return resp;
+			}
+		}, config);
+		this.m_thread = new ReverseConnectThread(this.m_dispatcher, config, "127.0.0.1", this.m_workstation.getLocalPort());
+		this.m_thread.start();
+		Socket sock = this.m_workstation.accept();
+		sock.setSoTimeout(10000);
+		return sock;
+	}
+
+
+	@After
+	public void stop() throws IOException {
+		if (this.m_thread != null)
+			this.m_thread.kill();
+		if (this.m_dispatcher != null)
+			this.m_dispatcher.shutdown();
+		if (this.m_workstation != null)
+			this.m_workstation.close();
+	}
+
+
+	private static void call(DataOutputStream out, int channel, int id) throws IOException {
+		byte[] payload = ("{\"id\": " + id + ", \"call\": [\"a\", \"listApps\"]}").getBytes("UTF-8");
+		out.writeInt(8 + payload.length);
+		out.writeInt(channel);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+
+	@Test
+	public void refusesChannelsPastMaxClients() throws IOException {
+		GadgetConfig config = new GadgetConfig();
+		config.maxClients = 2;
+		Socket sock = this.connect(config, 1);
+		DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+		DataInputStream in = new DataInputStream(sock.getInputStream());
+
+		int answered = 0;
+		int refused = 0;
+		for (int channel=1; channel<=3; channel++)
+			call(out, channel, channel);
+		for (int i=0; i<3; i++)
+		{
+			int size = in.readInt();
+			int channel = in.readInt();
+			in.readFully(new byte[size - 4]);
+			if (size == 4)
+			{
+				assertEquals(3, channel);
+				refused++;
+			}
+			else
+				answered++;
+		}
+		assertEquals(2, answered);
+		assertEquals(1, refused);
+	}
+
+
+	@Test
+	public void dropsAStalledUplink() throws IOException {
+		GadgetConfig config = new GadgetConfig();
+		config.writeTimeout = 300;
+		Socket sock = this.connect(config, 1024 * 1024);
+		DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+
+		/* Never read the responses, far bigger than the socket buffers:
+		 * Gadget drops the uplink, then connects again */
+		for (int id=0; id<8; id++)
+			call(out, 1, id);
+		Socket again = this.m_workstation.accept();
+		assertNotNull(again);
+		again.close();
+		sock.close();
+	}
+}
@@ -0,0 +1,62 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+
+public class SessionTest {
+
+	private static byte[] utf8(String text) throws IOException {
+		return text.getBytes("UTF-8");
+	}
+
+
+	@Test
+	public void legacyFirstFrameIsARequest() throws IOException {
+		Session session = new Session(1024);
+		byte[] frame = utf8("[\"com.example\", \"listApps\"]");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		assertFalse(session.handshake(frame, 0, frame.length, out));
+		assertFalse(session.isNegotiating());
+		assertEquals(0, out.size());
+		Request req = session.decodeRequest(frame, 0, frame.length);
+		assertEquals("listApps", req.method);
+
+		/* Following frames are decoded on their own */
+		byte[] next = utf8("{\"id\": 3, \"call\": [\"com.example\", \"stats\"]}");
+		req = session.decodeRequest(next, 0, next.length);
+		assertEquals("stats", req.method);
+		assertEquals(Integer.valueOf(3), req.id);
+	}
+
+
+	@Test
+	public void handshakeIsAnswered() throws IOException {
+		Session session = new Session(1024);
+		byte[] frame = utf8("{\"hello\": {\"encoding\": \"binary\", \"priority\": \"bulk\"}}");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		assertTrue(session.handshake(frame, 0, frame.length, out));
+		String answer = out.toString("UTF-8");
+		assertTrue(answer, answer.contains("\"success\":true"));
+		assertTrue(answer, answer.contains("binary"));
+		assertEquals("binary", session.getCodec().getName());
+	}
+
+
+	@Test
+	public void garbageFirstFrameIsDropped() throws IOException {
+		Session session = new Session(1024);
+		byte[] frame = utf8("{not json");
+		assertFalse(session.handshake(frame, 0, frame.length, new ByteArrayOutputStream()));
+		assertNull(session.decodeRequest(frame, 0, frame.length));
+	}
+}
@@ -0,0 +1,56 @@
+package com.sysdream.gadget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class WriteWatchdogTest {
+
+	private WriteWatchdog m_watchdog = new WriteWatchdog(200);
+
+
+	@After
+	public void stop() {
+		this.m_watchdog.shutdown();
+	}
+
+
+	@Test
+	public void closesBlockedWrites() throws InterruptedException {
+		final CountDownLatch closed = new CountDownLatch(1);
+		long start = System.nanoTime();
+		this.m_watchdog.begin(new WriteWatchdog.Target() {
+			public void onWriteTimeout() {
+				closed.countDown();
+			}
+		});
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= 200 * 1000000L);
+	}
+
+
+	@Test
+	public void ignoresWritesDoneInTime() throws InterruptedException {
+		final AtomicInteger closed = new AtomicInteger();
+		WriteWatchdog.Target target = new WriteWatchdog.Target() {
+			public void onWriteTimeout() {
+				closed.incrementAndGet();
+			}
+		};
+		for (int i=0; i<5; i++)
+		{
+			this.m_watchdog.begin(target);
+			Thread.sleep(50);
+			this.m_watchdog.end(target);
+		}
+		Thread.sleep(400);
+		assertEquals(0, closed.get());
+	}
+}
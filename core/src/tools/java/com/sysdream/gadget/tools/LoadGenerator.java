@@ -0,0 +1,297 @@
+package com.sysdream.gadget.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sysdream.gadget.FrameBuffer;
+import com.sysdream.gadget.GadgetConfig;
+import com.sysdream.gadget.Histogram;
+import com.sysdream.gadget.Logger;
+
+
+/**
+ * Load generator
+ *
+ * Opens concurrent connections to a Gadget server and sends requests over
+ * the 4-byte length protocol, each connection waiting for a response
+ * before sending its next request. Requests come from a recorded session
+ * (see Workload), replayed in a loop, or are a single repeated request.
+ * Reports throughput and latency percentiles once done.
+ *
+ *   LoadGenerator [options]
+ *     --host HOST          server address (127.0.0.1)
+ *     --port PORT          server port (4444)
+ *     --connections N      concurrent connections (1)
+ *     --duration SECONDS   test duration (10)
+ *     --requests N         stop each connection after N requests (no limit)
+ *     --rate R             requests per second per connection (0: as fast as possible)
+ *     --replay FILE        recorded session to replay
+ *     --speed X            replay recorded timestamps X times faster (1)
+ *     --request JSON       request sent when not replaying
+ *     --timeout MS         response timeout (5000)
+ *     --stub [SIZE]        start a local stub server on the port first
+ *
+ * When requests are paced (--rate, or a timed recording), latency is
+ * measured from the time each request was due rather than actually sent,
+ * so that a slow server is not hidden by the generator falling behind.
+ * The server answers malformed requests with an error when their ID can
+ * be read, and drops the others: a connection whose response times out
+ * is counted as timed out and closed.
+ */
+
+public class LoadGenerator {
+
+	private final static String DEFAULT_REQUEST = "[\"com.example.app\",\"getMethods\",3]";
+
+	private String m_host = "127.0.0.1";
+	private int m_port = StubServer.DEFAULT_PORT;
+	private int m_connections = 1;
+	private long m_duration = 10;
+	private long m_requests = Long.MAX_VALUE;
+	private double m_rate = 0;
+	private double m_speed = 1;
+	private int m_stub = -1;
+	private int m_timeout = 5000;
+	private Workload m_workload;
+
+	private Histogram m_latency = new Histogram();
+	private AtomicLong m_sent = new AtomicLong(0);
+	private AtomicLong m_errors = new AtomicLong(0);
+	private AtomicLong m_failures = new AtomicLong(0);
+	private AtomicLong m_timeouts = new AtomicLong(0);
+	private AtomicLong m_bytes = new AtomicLong(0);
+
+
+	/**
+	 * Connection's sending loop
+	 */
+
+	private class Worker extends Thread {
+		private CountDownLatch m_done;
+		private long m_deadline;
+		private byte[] m_response = new byte[4096];
+
+		Worker(CountDownLatch done, long deadline) {
+			this.m_done = done;
+			this.m_deadline = deadline;
+		}
+
+		public void run() {
+			Socket sock = null;
+			try {
+				sock = new Socket(m_host, m_port);
+				sock.setTcpNoDelay(true);
+				sock.setSoTimeout(m_timeout);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+				this.loop(in, out);
+			}
+			catch (SocketTimeoutException e) {
+				m_timeouts.incrementAndGet();
+			}
+			catch (IOException e) {
+				m_failures.incrementAndGet();
+				System.err.println("Connection error: " + e.getMessage());
+			}
+			finally {
+				try {
+					if (sock != null)
+						sock.close();
+				}
+				catch (IOException e) {
+				}
+				this.m_done.countDown();
+			}
+		}
+
+		private void loop(DataInputStream in, DataOutputStream out) throws IOException {
+			List<Workload.Step> steps = m_workload.getSteps();
+			boolean timed = (m_rate <= 0) && m_workload.isTimed();
+			double period = (m_rate > 0) ? 1e9 / m_rate : 0;
+			double span = steps.get(steps.size() - 1).at + 1;
+			long start = System.nanoTime();
+
+			for (long i=0; i<m_requests; i++)
+			{
+				Workload.Step step = steps.get((int)(i % steps.size()));
+
+				/* Schedule the request */
+				long due = System.nanoTime();
+				if (period > 0)
+					due = start + (long)(i * period);
+				else if (timed)
+				{
+					long loop = i / steps.size();
+					due = start + (long)((loop * span + step.at) * 1e6 / m_speed);
+				}
+				if (due >= this.m_deadline)
+					return;
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+				{
+					try {
+						Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				out.writeInt(step.payload.length);
+				out.write(step.payload);
+				out.flush();
+				m_sent.incrementAndGet();
+				if (!this.readResponse(in))
+					m_errors.incrementAndGet();
+				m_latency.record(System.nanoTime() - due);
+			}
+		}
+
+		/**
+		 * Read a response, concatenating chunks
+		 * @return boolean False if it is a JSON error response
+		 */
+
+		private boolean readResponse(DataInputStream in) throws IOException {
+			int length = 0;
+			boolean more = true;
+			while (more) {
+				int header = in.readInt();
+				more = (header & FrameBuffer.MORE_CHUNKS) != 0;
+				int size = header & ~FrameBuffer.MORE_CHUNKS;
+				if (length + size > this.m_response.length)
+				{
+					byte[] bigger = new byte[Math.max(length + size, this.m_response.length * 2)];
+					System.arraycopy(this.m_response, 0, bigger, 0, length);
+					this.m_response = bigger;
+				}
+				in.readFully(this.m_response, length, size);
+				length += size;
+			}
+			m_bytes.addAndGet(length);
+			return isSuccess(this.m_response, length);
+		}
+	}
+
+
+	/**
+	 * Check a JSON response's success flag. Responses in another encoding
+	 * are counted as successful.
+	 */
+
+	private static boolean isSuccess(byte[] payload, int length) {
+		if ((length == 0) || (payload[0] != '{'))
+			return true;
+		try {
+			JsonElement root = JsonParser.parseString(new String(payload, 0, length, "UTF-8"));
+			JsonElement success = root.getAsJsonObject().get("success");
+			return (success == null) || success.getAsBoolean();
+		}
+		catch (Exception e) {
+			return true;
+		}
+	}
+
+
+	/**
+	 * Run the test and print the report
+	 */
+
+	public void run() throws Exception {
+		StubServer stub = null;
+		if (this.m_stub >= 0)
+		{
+			Logger.setSink(null);
+			stub = new StubServer(this.m_port, this.m_stub, new GadgetConfig());
+			Thread.sleep(200);
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + this.m_duration * 1000000000L;
+		CountDownLatch done = new CountDownLatch(this.m_connections);
+		for (int i=0; i<this.m_connections; i++)
+			new Worker(done, deadline).start();
+		done.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		if (stub != null)
+			stub.stop();
+
+		long sent = this.m_sent.get();
+		System.out.println(String.format("Connections: %d (%d failed, %d timed out)", this.m_connections, this.m_failures.get(), this.m_timeouts.get()));
+		System.out.println(String.format("Requests:    %d in %.2f s, %d errors", sent, elapsed, this.m_errors.get()));
+		System.out.println(String.format("Throughput:  %.1f req/s, %.1f KB/s received", sent / elapsed, this.m_bytes.get() / elapsed / 1024));
+		System.out.println(String.format("Latency:     p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+				this.m_latency.getPercentile(50) / 1000.0, this.m_latency.getPercentile(90) / 1000.0,
+				this.m_latency.getPercentile(99) / 1000.0, this.m_latency.getPercentile(99.9) / 1000.0,
+				this.m_latency.getPercentile(100) / 1000.0));
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator gen = new LoadGenerator();
+		String request = DEFAULT_REQUEST;
+		String replay = null;
+
+		for (int i=0; i<args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("--stub"))
+			{
+				gen.m_stub = 16;
+				if ((i + 1 < args.length) && !args[i + 1].startsWith("--"))
+					gen.m_stub = Integer.parseInt(args[++i]);
+				continue;
+			}
+			if (i + 1 >= args.length)
+				usage("Missing value for " + arg);
+			String value = args[++i];
+			if (arg.equals("--host"))
+				gen.m_host = value;
+			else if (arg.equals("--port"))
+				gen.m_port = Integer.parseInt(value);
+			else if (arg.equals("--connections"))
+				gen.m_connections = Integer.parseInt(value);
+			else if (arg.equals("--duration"))
+				gen.m_duration = Long.parseLong(value);
+			else if (arg.equals("--requests"))
+				gen.m_requests = Long.parseLong(value);
+			else if (arg.equals("--rate"))
+				gen.m_rate = Double.parseDouble(value);
+			else if (arg.equals("--speed"))
+				gen.m_speed = Double.parseDouble(value);
+			else if (arg.equals("--replay"))
+				replay = value;
+			else if (arg.equals("--request"))
+				request = value;
+			else if (arg.equals("--timeout"))
+				gen.m_timeout = Integer.parseInt(value);
+			else
+				usage("Unknown option " + arg);
+		}
+
+		gen.m_workload = (replay != null) ? Workload.load(replay) : Workload.of(request);
+		if (gen.m_workload.getSteps().size() == 0)
+			usage("Nothing to replay");
+		gen.run();
+		System.exit(0);
+	}
+
+
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: LoadGenerator [--host HOST] [--port PORT] [--connections N] [--duration SECONDS]");
+		System.err.println("       [--requests N] [--rate R] [--replay FILE [--speed X]] [--request JSON] [--timeout MS] [--stub [SIZE]]");
+		System.exit(1);
+	}
+}
@@ -0,0 +1,16 @@
+package com.sysdream.gadget.tools;
+
+
+/**
+ * Stand-in for Fino's IInspectionService
+ *
+ * Plain Java interface with the same shape of methods, so requests can be
+ * parsed and dispatched off-device.
+ */
+
+public interface StubInspectionService {
+	public String[] getEntryPoints();
+	public String[] getMethods(int path);
+	public String getClassName(int path);
+	public boolean isFieldOfType(int path, String field, String type);
+}
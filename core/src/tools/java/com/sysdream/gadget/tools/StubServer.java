@@ -0,0 +1,60 @@
+package com.sysdream.gadget.tools;
+
+import com.sysdream.gadget.GadgetConfig;
+import com.sysdream.gadget.NioServerThread;
+import com.sysdream.gadget.RequestRouter;
+
+
+/**
+ * Stub server
+ *
+ * Gadget's non-blocking RPC server and request router in front of a
+ * stand-in Fino service (StubService), so clients and load tests run on a
+ * plain JVM.
+ *
+ *   StubServer [port [size]]
+ *
+ * size is the number of items list methods return (16 by default).
+ */
+
+public class StubServer {
+
+	public final static int DEFAULT_PORT = 4444;
+
+	private NioServerThread m_thread;
+	private RequestRouter m_router;
+
+
+	/**
+	 * Start a server
+	 * @param port the port to listen on
+	 * @param size number of items returned by list methods
+	 * @param config server configuration
+	 */
+
+	public StubServer(int port, int size, GadgetConfig config) {
+		StubService.install();
+		this.m_router = new RequestRouter(new StubService(size), config);
+		this.m_thread = new NioServerThread(this.m_router.getDispatcher(), config, port);
+		this.m_thread.start();
+	}
+
+
+	/**
+	 * Stop the server
+	 */
+
+	public void stop() {
+		this.m_thread.kill();
+		this.m_router.shutdown();
+	}
+
+
+	public static void main(String[] args) throws InterruptedException {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+		new StubServer(port, size, new GadgetConfig());
+		System.err.println("Stub server listening on port " + port);
+		Thread.currentThread().join();
+	}
+}
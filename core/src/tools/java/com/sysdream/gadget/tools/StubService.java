@@ -0,0 +1,97 @@
+package com.sysdream.gadget.tools;
+
+import com.sysdream.gadget.Dispatcher;
+import com.sysdream.gadget.IServiceHost;
+import com.sysdream.gadget.MethodTable;
+
+
+/**
+ * Stub inspection service
+ *
+ * Answers StubInspectionService calls with canned data, and hosts itself
+ * as the service of every application, so that requests go through the
+ * same RequestRouter as on Android.
+ */
+
+public class StubService implements StubInspectionService, IServiceHost {
+
+	public final static String APP = "com.example.app";
+
+	private String[] m_entry_points;
+	private String[] m_methods;
+
+
+	/**
+	 * Constructor
+	 * @param size number of items returned by list methods
+	 */
+
+	public StubService(int size) {
+		this.m_entry_points = new String[size];
+		this.m_methods = new String[size];
+		for (int i=0; i<size; i++)
+		{
+			this.m_entry_points[i] = "com.example.app.MainActivity.field" + i;
+			this.m_methods[i] = "public java.lang.String com.example.app.Model.method" + i + "(int,java.lang.String)";
+		}
+	}
+
+
+	/**
+	 * Resolve requests against StubInspectionService
+	 */
+
+	public static void install() {
+		MethodTable.setDefault(new MethodTable(StubInspectionService.class));
+	}
+
+
+	public String[] getEntryPoints() {
+		return this.m_entry_points;
+	}
+
+	public String[] getMethods(int path) {
+		return this.m_methods;
+	}
+
+	public String getClassName(int path) {
+		return "com.example.app.Model" + path;
+	}
+
+	public boolean isFieldOfType(int path, String field, String type) {
+		return (path & 1) == 0;
+	}
+
+
+	public Object getService(String app) {
+		return this;
+	}
+
+	public Object connect(String app, long timeout) {
+		return this;
+	}
+
+	public boolean isDead(Throwable error) {
+		return false;
+	}
+
+	public void markDead(String app, Object service) {
+	}
+
+	public boolean hasDied(String app) {
+		return false;
+	}
+
+	public String[] getApps() {
+		return new String[] { APP };
+	}
+
+	/* The application list never changes */
+
+	public void subscribeApps(Dispatcher.Client client, Integer id) {
+	}
+
+	public boolean unsubscribeApps(Dispatcher.Client client) {
+		return false;
+	}
+}
@@ -0,0 +1,155 @@
+package com.sysdream.gadget.tools;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+/**
+ * Workload
+ *
+ * Sequence of request payloads sent by each load generator connection,
+ * optionally with the time each was sent at in the recorded session.
+ * Recordings are read in one of two formats:
+ *
+ *   - JSON lines: one request per line, either as sent by libfino
+ *     (["app", "method", args...], or a tagged/batch object) or wrapped
+ *     with its offset from the session's start in milliseconds:
+ *     {"t": 125.5, "request": ["app", "method", args...]}
+ *   - raw frames: the client-to-Gadget side of a TCP session as captured
+ *     on the wire (4-byte size, payload), e.g. with tcpflow.
+ *
+ * The format is detected from the first byte.
+ */
+
+public class Workload {
+
+	/**
+	 * Recorded request
+	 */
+
+	public static class Step {
+		public final byte[] payload;
+		public final double at;
+
+		Step(byte[] payload, double at) {
+			this.payload = payload;
+			this.at = at;
+		}
+	}
+
+	private List<Step> m_steps = new ArrayList<Step>();
+
+
+	/**
+	 * Get the recorded requests
+	 * @return List<Step> the requests, in order
+	 */
+
+	public List<Step> getSteps() {
+		return this.m_steps;
+	}
+
+
+	/**
+	 * Check if the workload has timestamps to replay
+	 * @return boolean True if every request has one
+	 */
+
+	public boolean isTimed() {
+		for (Step step : this.m_steps)
+			if (step.at < 0)
+				return false;
+		return this.m_steps.size() > 0;
+	}
+
+
+	/**
+	 * Build a workload repeating a single request
+	 * @param request the request's JSON form
+	 * @return Workload the workload
+	 */
+
+	public static Workload of(String request) throws IOException {
+		Workload workload = new Workload();
+		workload.m_steps.add(new Step(request.getBytes("UTF-8"), -1));
+		return workload;
+	}
+
+
+	/**
+	 * Load a recorded session
+	 * @param path the recording's path
+	 * @return Workload the workload
+	 */
+
+	public static Workload load(String path) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(new FileInputStream(path));
+		try {
+			int first = in.read();
+			if (first < 0)
+				throw new IOException("Empty recording " + path);
+			in.unread(first);
+			if ((first == '[') || (first == '{'))
+				return loadJsonLines(in);
+			return loadFrames(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	private static Workload loadJsonLines(InputStream in) throws IOException {
+		Workload workload = new Workload();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0)
+				continue;
+			JsonElement root = JsonParser.parseString(line);
+			if (root.isJsonObject() && root.getAsJsonObject().has("request"))
+			{
+				JsonObject recorded = root.getAsJsonObject();
+				double at = recorded.has("t") ? recorded.get("t").getAsDouble() : -1;
+				workload.m_steps.add(new Step(recorded.get("request").toString().getBytes("UTF-8"), at));
+			}
+			else
+				workload.m_steps.add(new Step(line.getBytes("UTF-8"), -1));
+		}
+		return workload;
+	}
+
+
+	private static Workload loadFrames(InputStream in) throws IOException {
+		Workload workload = new Workload();
+		DataInputStream data = new DataInputStream(in);
+		while (true) {
+			int size;
+			try {
+				size = data.readInt();
+			}
+			catch (EOFException e) {
+				break;
+			}
+			if (size < 0)
+				throw new IOException("Bad frame size " + size);
+			byte[] payload = new byte[size];
+			data.readFully(payload);
+			workload.m_steps.add(new Step(payload, -1));
+		}
+		return workload;
+	}
+}
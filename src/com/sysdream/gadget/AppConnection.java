@@ -0,0 +1,109 @@
+package com.sysdream.gadget;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.sysdream.fino.IInspectionService;
+
+
+/**
+ * Application connection
+ *
+ * Binding to an application's Fino inspection service. Each attached
+ * application owns one, reused across rebinds, so that Gadget never holds
+ * more than one binding per application and can always release it.
+ * Connection events update the application's state in the registry.
+ */
+
+public class AppConnection implements ServiceConnection {
+
+	private final static String TAG = "AppConnection";
+
+	private Context m_context;
+	private String m_app;
+	private AppRegistry m_registry;
+	private boolean m_bound = false;
+	private volatile IInspectionService m_service = null;
+
+
+	/**
+	 * Constructor
+	 * @param context the context binding the service
+	 * @param app the application's package
+	 * @param registry the registry to update
+	 */
+
+	public AppConnection(Context context, String app, AppRegistry registry) {
+		this.m_context = context;
+		this.m_app = app;
+		this.m_registry = registry;
+	}
+
+
+	/**
+	 * Bind the application's service, dropping any previous binding
+	 * @return boolean True if binding is in progress, false if the service cannot be bound
+	 */
+
+	public synchronized boolean bind() {
+		this.unbind();
+		Intent intent = new Intent(PackageIndex.FINO_ACTION);
+		intent.setPackage(this.m_app);
+		Log.d(TAG, "Connecting to application " + this.m_app);
+		this.m_bound = this.m_context.bindService(intent, this, Context.BIND_AUTO_CREATE);
+		if (!this.m_bound)
+			Log.d(TAG, "Cannot bind to " + this.m_app);
+		return this.m_bound;
+	}
+
+
+	/**
+	 * Release the binding
+	 */
+
+	public synchronized void unbind() {
+		if (!this.m_bound)
+			return;
+		this.m_bound = false;
+		try {
+			this.m_context.unbindService(this);
+		}
+		catch (IllegalArgumentException e) {
+			/* Not bound anymore */
+		}
+	}
+
+
+	// Called when the connection with the service is established
+	public void onServiceConnected(ComponentName className, IBinder binder) {
+		Log.d(TAG, "Connected to " + this.m_app);
+		IInspectionService service = IInspectionService.Stub.asInterface(binder);
+		this.m_service = service;
+		this.m_registry.connected(this.m_app, service);
+
+		/* Launch application only when the corresponding service is started */
+		/*
+		Intent i = new Intent();
+		PackageManager manager = context.getPackageManager();
+		i = manager.getLaunchIntentForPackage(appPkg);
+		if (i != null)
+		{
+			i.addCategory(Intent.CATEGORY_LAUNCHER);
+			context.startActivity(i);
+		}
+		*/
+	}
+
+
+	// Called when the connection with the service disconnects unexpectedly
+	public void onServiceDisconnected(ComponentName className) {
+		Log.d(TAG, "Disconnected from " + this.m_app);
+		IInspectionService service = this.m_service;
+		if (service != null)
+			this.m_registry.markDead(this.m_app, service);
+	}
+}
@@ -0,0 +1,240 @@
+package com.sysdream.gadget;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.sysdream.fino.IInspectionService;
+
+
+/**
+ * Application registry
+ *
+ * Tracks the connection state of every attached application: BINDING
+ * while bindService() is in progress, CONNECTED once its inspection
+ * service is known, DEAD when its binder died. Entries are immutable and
+ * every transition atomically replaces an app's entry, so lookups never
+ * lock. Death of a connected binder is detected through linkToDeath().
+ */
+
+public class AppRegistry {
+
+	public final static int BINDING = 0;
+	public final static int CONNECTED = 1;
+	public final static int DEAD = 2;
+
+	private final static String TAG = "AppRegistry";
+
+
+	/**
+	 * Notified when an application's connected service goes away or is
+	 * replaced, and when it dies
+	 */
+
+	public interface Listener {
+		public void onServiceChanged(String app);
+		public void onServiceDied(String app);
+	}
+
+
+	/**
+	 * Application state
+	 */
+
+	public static class Entry {
+		public final String app;
+		public final int state;
+		public final IInspectionService service;
+		private final CountDownLatch m_bound;
+		private final IBinder.DeathRecipient m_recipient;
+
+		private Entry(String app, int state, IInspectionService service, CountDownLatch bound, IBinder.DeathRecipient recipient) {
+			this.app = app;
+			this.state = state;
+			this.service = service;
+			this.m_bound = bound;
+			this.m_recipient = recipient;
+		}
+
+		/**
+		 * Get the latch released when a binding is over
+		 * @return CountDownLatch the latch, null if not binding
+		 */
+
+		public CountDownLatch getLatch() {
+			return this.m_bound;
+		}
+
+		private void release() {
+			if (this.m_bound != null)
+				this.m_bound.countDown();
+			if ((this.m_recipient != null) && (this.service != null))
+				this.service.asBinder().unlinkToDeath(this.m_recipient, 0);
+		}
+	}
+
+
+	private ConcurrentHashMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+	private Listener m_listener;
+
+
+	/**
+	 * Constructor
+	 * @param listener notified of service changes, may be null
+	 */
+
+	public AppRegistry(Listener listener) {
+		this.m_listener = listener;
+	}
+
+
+	/**
+	 * Create a binding entry, to be installed with startBinding()
+	 * @param app the application
+	 * @return Entry the BINDING entry
+	 */
+
+	public static Entry binding(String app) {
+		return new Entry(app, BINDING, null, new CountDownLatch(1), null);
+	}
+
+
+	/**
+	 * Get an application's entry
+	 * @param app the application
+	 * @return Entry its entry, null if not attached
+	 */
+
+	public Entry get(String app) {
+		return this.m_entries.get(app);
+	}
+
+
+	/**
+	 * Get an application's connected service
+	 * @param app the application
+	 * @return IInspectionService the service, null if not connected
+	 */
+
+	public IInspectionService getService(String app) {
+		Entry entry = this.m_entries.get(app);
+		if ((entry == null) || (entry.state != CONNECTED))
+			return null;
+		return entry.service;
+	}
+
+
+	/**
+	 * Install a binding entry, unless the application is already bound or
+	 * being bound
+	 * @param binding the entry created by binding()
+	 * @return Entry binding if the caller must bind, the current entry otherwise
+	 */
+
+	public Entry startBinding(Entry binding) {
+		while (true) {
+			Entry current = this.m_entries.get(binding.app);
+			if (current == null)
+			{
+				if (this.m_entries.putIfAbsent(binding.app, binding) == null)
+					return binding;
+			}
+			else if (current.state != DEAD)
+				return current;
+			else if (this.m_entries.replace(binding.app, current, binding))
+				return binding;
+		}
+	}
+
+
+	/**
+	 * Give up a binding
+	 * @param binding the entry installed by startBinding()
+	 */
+
+	public void bindFailed(Entry binding) {
+		this.m_entries.remove(binding.app, binding);
+		binding.release();
+	}
+
+
+	/**
+	 * Record an application's service, releasing threads waiting for the
+	 * binding
+	 * @param app the application
+	 * @param service its inspection service
+	 * @return Entry the previous entry, null if none
+	 */
+
+	public Entry connected(final String app, final IInspectionService service) {
+		Entry entry;
+		IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+			public void binderDied() {
+				Log.d(TAG, app + " died");
+				AppRegistry.this.markDead(app, service);
+			}
+		};
+		try {
+			service.asBinder().linkToDeath(recipient, 0);
+			entry = new Entry(app, CONNECTED, service, null, recipient);
+		}
+		catch (RemoteException e) {
+			/* Already dead */
+			entry = new Entry(app, DEAD, null, null, null);
+		}
+
+		Entry previous = this.m_entries.put(app, entry);
+		if (previous != null)
+			previous.release();
+		if ((previous != null) && (previous.service != null) && (previous.service != service))
+			this.changed(app);
+		return previous;
+	}
+
+
+	/**
+	 * Mark an application's service as dead, if it is still the current one
+	 * @param app the application
+	 * @param service the dead service
+	 * @return boolean True if the state changed
+	 */
+
+	public boolean markDead(String app, IInspectionService service) {
+		Entry current = this.m_entries.get(app);
+		if ((current == null) || (current.service != service))
+			return false;
+		if (!this.m_entries.replace(app, current, new Entry(app, DEAD, null, null, null)))
+			return false;
+		current.release();
+		this.changed(app);
+		if (this.m_listener != null)
+			this.m_listener.onServiceDied(app);
+		return true;
+	}
+
+
+	/**
+	 * Forget an application
+	 * @param app the application
+	 * @return Entry the removed entry, null if none
+	 */
+
+	public Entry remove(String app) {
+		Entry previous = this.m_entries.remove(app);
+		if (previous == null)
+			return null;
+		previous.release();
+		if (previous.service != null)
+			this.changed(app);
+		return previous;
+	}
+
+
+	private void changed(String app) {
+		if (this.m_listener != null)
+			this.m_listener.onServiceChanged(app);
+	}
+}
@@ -3,6 +3,7 @@ package com.sysdream.gadget;
 import com.sysdream.gadget.GadgetService.GadgetServiceBinder;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.app.Activity;
 import android.content.ComponentName;
@@ -30,6 +31,22 @@ public class Gadget extends Activity {
     private boolean mBound = false;
     private TextView mStatus = null;
     private EditText mPort = null;
+    private TextView mStats = null;
+    private Handler mHandler = new Handler();
+    private static final long STATS_REFRESH = 1000;
+
+    /** Refreshes the metrics summary while the activity is visible */
+    private Runnable mRefreshStats = new Runnable() {
+        public void run() {
+            if (mBound)
+            {
+                String stats = mService.getStats();
+                if (stats != null)
+                    Gadget.this.mStats.setText(stats);
+            }
+            mHandler.postDelayed(this, STATS_REFRESH);
+        }
+    };
 	
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -39,6 +56,7 @@ public class Gadget extends Activity {
         /* Get status TextView */
         this.mStatus = (TextView)this.findViewById(R.id.server_status);
         this.mPort = (EditText)this.findViewById(R.id.server_port);
+        this.mStats = (TextView)this.findViewById(R.id.server_stats);
 
         /* Set start server button click handler */
         Button btn_start = (Button)this.findViewById(R.id.btn_start_server);
@@ -66,6 +84,13 @@ public class Gadget extends Activity {
     	/* Bind to LocalService */
         Intent intent = new Intent(this, GadgetService.class);
         this.getApplicationContext().bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        mHandler.post(mRefreshStats);
+    }
+
+    @Override
+    public void onStop() {
+        mHandler.removeCallbacks(mRefreshStats);
+        super.onStop();
     }
 
     @Override
@@ -0,0 +1,52 @@
+package com.sysdream.gadget;
+
+import android.content.SharedPreferences;
+
+
+/**
+ * Gadget preferences
+ *
+ * Loads the RPC server's configuration from the "gadget" shared
+ * preferences when the service is created. Missing keys keep their
+ * default value, see GadgetConfig.
+ */
+
+public class GadgetPreferences {
+
+	public final static String PREFERENCES = "gadget";
+
+
+	/**
+	 * Load the configuration
+	 * @param prefs the shared preferences to read, may be null
+	 * @return GadgetConfig the configuration
+	 */
+
+	public static GadgetConfig load(SharedPreferences prefs) {
+		GadgetConfig config = new GadgetConfig();
+		if (prefs == null)
+			return config;
+
+		config.maxFrameSize = prefs.getInt("max_frame_size", config.maxFrameSize);
+		config.workerThreads = Math.max(1, prefs.getInt("worker_threads", config.workerThreads));
+		config.workerQueue = Math.max(1, prefs.getInt("worker_queue", config.workerQueue));
+		config.appConcurrency = Math.max(1, prefs.getInt("app_concurrency", config.appConcurrency));
+		config.bulkWorkers = Math.max(1, prefs.getInt("bulk_workers", config.bulkWorkers));
+		config.clientRate = Math.max(0, prefs.getFloat("client_rate", (float)config.clientRate));
+		config.clientBurst = Math.max(1, prefs.getInt("client_burst", config.clientBurst));
+		config.maxInFlight = Math.max(1, prefs.getInt("max_in_flight", config.maxInFlight));
+		config.callTimeout = Math.max(0, prefs.getLong("call_timeout", config.callTimeout));
+		config.writeTimeout = Math.max(0, prefs.getLong("write_timeout", config.writeTimeout));
+		config.maxClients = Math.max(1, prefs.getInt("max_clients", config.maxClients));
+		config.cacheableMethods = GadgetConfig.parseList(prefs.getString("cacheable_methods", null), config.cacheableMethods);
+		config.cacheMaxBytes = prefs.getLong("cache_max_bytes", config.cacheMaxBytes);
+		config.pollInterval = Math.max(1, prefs.getInt("poll_interval", config.pollInterval));
+		config.minPollInterval = Math.max(1, prefs.getInt("min_poll_interval", config.minPollInterval));
+		config.maxSubscriptions = Math.max(0, prefs.getInt("max_subscriptions", config.maxSubscriptions));
+		config.coalescedMethods = GadgetConfig.parseList(prefs.getString("coalesced_methods", null), config.coalescedMethods);
+		config.bindTimeout = Math.max(0, prefs.getLong("bind_timeout", config.bindTimeout));
+		config.prebindApps = GadgetConfig.parseList(prefs.getString("prebind_apps", null), config.prebindApps);
+		config.localSocketName = prefs.getString("local_socket_name", config.localSocketName);
+		return config;
+	}
+}
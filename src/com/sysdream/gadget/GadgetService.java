@@ -2,16 +2,14 @@ package com.sysdream.gadget;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 /*
@@ -19,19 +17,14 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
-import android.util.Base64;
 
 /**
  *  Fino's inspection service interface
@@ -42,7 +35,7 @@ import com.sysdream.fino.IInspectionService;
 /**
  * Gadget service
  * 
- * This service offers a TCP server able to forward API calls to a given
+ * This service offers a TCP (or local socket) server able to forward API calls to a given
  * remote Fino service running in another Android application. This service
  * must be used with our Python's libfino TCP client.
  */
@@ -53,15 +46,40 @@ public class GadgetService extends Service implements IGadgetService {
 	private static String TAG = "GadgetService";
 	private static ServerSocket server = null;
 	public GadgetServiceBinder binder = null;
-	private static ServerThread server_thread = null;
-	private static ConcurrentHashMap<String, IInspectionService> inspectionServices = new ConcurrentHashMap<String, IInspectionService>();
+	private static IGadgetServer server_thread = null;
+	private static int server_mode = IGadgetService.MODE_SERVER;
+	private static String server_address = null;
+	private static int server_port = 0;
+	private static AppRegistry registry = new AppRegistry(new AppRegistry.Listener() {
+		public void onServiceChanged(String app) {
+			/* Cached results belong to the previous service */
+			RequestRouter current = router;
+			if (current != null)
+				current.invalidate(app);
+		}
+
+		public void onServiceDied(String app) {
+			/* Rebind right away, pending calls wait for the new binding */
+			Context context = appContext;
+			if (context != null)
+				GadgetService.attachToApp(context, app);
+		}
+	});
+	private static ConcurrentHashMap<String, AppConnection> connections = new ConcurrentHashMap<String, AppConnection>();
+	private static volatile Context appContext = null;
 	private static Handler handler = null;
-	private static ServiceConnection connection = null;
+	private static volatile RequestRouter router = null;
+	private static Dispatcher dispatcher = null;
+	private static GadgetConfig config = new GadgetConfig();
+	private static PackageIndex packages = null;
 	
 	/**
 	 * ClientThread
 	 * 
-	 * Process messages coming from a connected client.
+	 * Process messages coming from a connected client. Requests run on the
+	 * shared dispatcher and responses are written by the threads producing
+	 * them, one at a time (see Channel), a write blocked past the write
+	 * timeout closing the connection.
 	 */
 	
 	public class ClientThread extends Thread {
@@ -70,11 +88,41 @@ public class GadgetService extends Service implements IGadgetService {
 		private Socket client = null;
 		private InputStream sock_in = null;
 		private OutputStream sock_out = null;
-		private byte[] size_buf = new byte[4];
-		private int size = 0;
-		private int msg_type = 0;
+		private FrameReader m_reader = null;
 		private boolean m_running = false;
 		private ServerThread m_parent = null;
+		private ClientChannel m_channel = null;
+		
+		
+		/**
+		 * Client's protocol state, writing responses to its socket
+		 */
+		
+		private class ClientChannel extends Channel implements WriteWatchdog.Target {
+			
+			public ClientChannel() {
+				super(GadgetService.getDispatcher(), GadgetService.getConfig().maxFrameSize,
+						GadgetService.getConfig().maxInFlight);
+			}
+			
+			public void sendFrame(FrameBuffer frame, boolean more) throws IOException {
+				OutputStream out = ClientThread.this.sock_out;
+				synchronized (out) {
+					m_parent.m_watchdog.begin(this);
+					try {
+						frame.writeFrame(out, more);
+					}
+					finally {
+						m_parent.m_watchdog.end(this);
+					}
+				}
+			}
+			
+			public void onWriteTimeout() {
+				/* Fails the blocked write, and the reading thread */
+				ClientThread.this.kill();
+			}
+		}
 		
 		/**
 		 * Constructor
@@ -112,161 +160,29 @@ public class GadgetService extends Service implements IGadgetService {
 			}
 			this.interrupt();
 		}
-
-		
-		/**
-		 * Read an RPC request from the client socket and unserialize it (JSON based).
-		 * 
-		 * @param size Size of the raw request
-		 * @return Request the request read from the socket.
-		 */
-		
-		private Request readRequest(int size) throws IOException {
-			byte[]raw_json = new byte[size];
-            int read = 0, got = 0;
-
-            while (read < size) {
-                /*Log.d(TAG, "Expecting " + (size-read) + " bytes");*/
-                got = this.sock_in.read(raw_json, read, size-read);
-                /*Log.d(TAG, "Got " + got + " bytes on " + size);*/
-                if (got < 0)
-                    return null;
-                read += got;
-            }
-
-			/* Build the corresponding message based on the serialized data */
-			/*Log.d(TAG,"Got JSON: "+new String(raw_json));*/
-			Request req = Request.fromJson(new String(raw_json));
-            /*
-            if (req != null)
-    			Log.d(TAG, "Got request "+req.method.toString());
-            else
-                Log.d(TAG, "Error parsing request");
-            */
-			return req;
-		}
-		
-		
-		/**
-		 * Process request
-		 * @param req the request to process
-		 * @return False if the request cannot be processed, true otherwise
-		 */
-		
-		public boolean processRequest(final Request req) {
-			Response resp = new Response(null, false);
-			
-			if (req == null)
-				resp = new Response("Bad request", false);
-			else
-			{
-				/* Special request 'listApps', not implemented in Fino Service */
-				if (req.method.equals("listApps"))
-				{
-					/* Create a list of applications implementing "com.sysdream.fino.inspection" */
-					final ArrayList<String> pkgs = new ArrayList<String>();
-					final Intent i = new Intent("com.sysdream.fino.inspection");
-					for(final ResolveInfo r : getPackageManager()
-							.queryIntentServices(i, 0)) {
-						pkgs.add(r.serviceInfo.packageName);
-					}
-					
-					/* Send this list to the remote client */
-					return this.sendResponse(new Response(pkgs.toArray(new String[]{}), true));
-				}
-				else if (req.method.equals("connectApp")) {
-					/* Special request'connectApp', not implement in Fino Service */
-					/* Attach Gadget to the remote application (create it if needed) */
-					GadgetService.attachToApp(GadgetService.this.getApplicationContext(), req.app);
-					
-					/* Send response to the remote client */
-					return this.sendResponse(new Response(req.app, true));
-				}
-				else
-				{
-					/* Do some inspection to call our remote method */
-					final Method m;
-					try {
-						m = IInspectionService.class.getMethod(req.method, req.paramTypes);
-						final IInspectionService service = GadgetService.getAppService(req.app);
-						if (service != null)
-						{
-							if (req.parameters.length == 0)
-								this.sendResponse(new Response(m.invoke(service), true));
-							else
-								this.sendResponse(new Response(m.invoke(service, req.parameters), true));
-							return true;
-						}
-						else
-							resp = new Response("Service not found", false);
-					} catch (NoSuchMethodException e) {
-						/* Method not found */
-						resp = new Response("Method does not exist", false);
-					} catch (IllegalArgumentException e1) {
-						/* Bad argument */
-						resp = new Response("Illegal argument", false);
-					} catch (IllegalAccessException e) {
-						/* Access exception */ 
-						resp = new Response("Illegal access", false);
-					} catch (InvocationTargetException e) {
-						/* Invocation error */
-						resp = new Response("Invocation error", false);
-						e.printStackTrace();
-					}			
-					
-					/* Send response to the remote client */
-					return this.sendResponse(resp);
-				}
-			}
-			
-			/* Error */
-			return false;
-		}
-
-		
-		/**
-		 * Send a response to the remote client
-		 * @param resp the response to send
-		 * @return Boolean False if the response cannot be send, true otherwise 
-		 */
-		
-		public boolean sendResponse(Response resp) {
-			/* Send response */
-			try {
-				sock_out.write(resp.toRaw());
-				return true;
-			} catch (IOException e) {
-				return false;
-			}
-		}
 		
 		
 		/**
 		 * ClientThread's main loop
 		 * 
-		 * Read RPC messages from socket, process it and send response to the remote client
+		 * Read RPC messages from socket and hand them to the client's channel
 		 */
 		
 		public void run() {  
-			int nbread = -1;
         	try {
         		Log.d(TAG, "Handle client connection");
         		this.sock_in = client.getInputStream();
+        		this.m_reader = new FrameReader(this.sock_in, GadgetService.getConfig().maxFrameSize);
         		this.sock_out = client.getOutputStream();
+        		this.m_channel = new ClientChannel();
                 while (this.isRunning()) {
-                	nbread = this.sock_in.read(size_buf, 0, 4);
-            		if (nbread == 4)
-            		{
-            			/* Convert size bytes to real size int */
-                        size = ByteBuffer.wrap(size_buf).getInt();
-
-            			/* Process message */
-            			Request req = this.readRequest(size);
-            			if (req != null)
-            				this.processRequest(req);
-            		}
-            		else if (nbread < 0)
+                	int size = this.m_reader.readFrame();
+            		if (size < 0)
             			break;
+
+            		/* Process message, waiting while too many are queued */
+            		this.m_channel.onFrame(this.m_reader.getBuffer(), 0, size);
+            		this.m_channel.awaitRoom();
                 }
                 /* Client socket closed */
                 this.client.close();
@@ -277,9 +193,28 @@ public class GadgetService extends Service implements IGadgetService {
         		Log.d(TAG, "Client socket closed");
         		this.m_parent.onClientDisconnect(this);
         	}
+        	catch(IOException ioerr) {
+        		/* Truncated or oversized frame, the stream cannot be resynchronized */
+        		Log.d(TAG, "Protocol error: " + ioerr.getMessage());
+        		try {
+        			this.client.close();
+        		}
+        		catch (IOException sockerr) {
+        		}
+        		this.m_parent.onClientDisconnect(this);
+        	}
+        	catch(InterruptedException e) {
+        		/* Killed while waiting for room */
+        		Log.d(TAG, "Client thread interrupted");
+        		this.m_parent.onClientDisconnect(this);
+        	}
         	catch(Exception e) {
         		e.printStackTrace();
         	}
+        	finally {
+        		if (this.m_channel != null)
+        			this.m_channel.close();
+        	}
         }       
 
 	}
@@ -288,17 +223,17 @@ public class GadgetService extends Service implements IGadgetService {
 	/**
 	 * Server Thread
 	 * 
-	 * Manages the server socket. This class only implements a listening socket
-	 * 
-	 * TODO: Implements a remote connecting socket
+	 * Manages the server socket. This class only implements a listening socket,
+	 * see ReverseConnectThread for the remote connecting one.
 	 */
 	
-	public class ServerThread extends Thread {
+	public class ServerThread extends Thread implements IGadgetServer {
 
 		private int port = -1;
 		private boolean m_running = false;
 		private ServerSocket server = null;
 		private ArrayList<ClientThread> m_clients = new ArrayList<ClientThread>();
+		private WriteWatchdog m_watchdog = new WriteWatchdog(GadgetService.getConfig().writeTimeout);
 
 		@Override
 		public void start() {
@@ -315,8 +250,11 @@ public class GadgetService extends Service implements IGadgetService {
 			m_running = false;
 			try {
 				/* Kill all clients */
-				for (ClientThread client : m_clients)
-					client.kill();
+				synchronized (m_clients) {
+					for (ClientThread client : new ArrayList<ClientThread>(m_clients))
+						client.kill();
+				}
+				this.m_watchdog.shutdown();
 				this.server.close();
 			}
 			catch (IOException sockerr) {
@@ -357,8 +295,17 @@ public class GadgetService extends Service implements IGadgetService {
 	             this.server = new ServerSocket(this.port);
 	             while (this.isRunning()) {
 	            	 Socket client_sock = this.server.accept();
-	            	 client = new ClientThread(client_sock, this);
-	            	 m_clients.add(client);
+	            	 synchronized (m_clients) {
+	            		 if (m_clients.size() >= GadgetService.getConfig().maxClients)
+	            		 {
+	            			 /* Too many clients, refuse connection */
+	            			 Log.d("Service", "Too many clients, connection refused");
+	            			 client_sock.close();
+	            			 continue;
+	            		 }
+	            		 client = new ClientThread(client_sock, this);
+	            		 m_clients.add(client);
+	            	 }
 	            	 client.start();
 	             }
 	             
@@ -379,8 +326,9 @@ public class GadgetService extends Service implements IGadgetService {
 	     */
 	    
 	    public void onClientDisconnect(ClientThread client) {
-	    	if (m_clients.contains(client))
+	    	synchronized (m_clients) {
 	    		m_clients.remove(client);
+	    	}
 	    }
 	}
 	
@@ -424,6 +372,12 @@ public class GadgetService extends Service implements IGadgetService {
 			return -1;
 		}
 
+		public String getStats() {
+			if (service != null)
+				return service.getStats();
+			return null;
+		}
+
 		public IGadgetService getService() {
 			return service;
 		}
@@ -434,22 +388,82 @@ public class GadgetService extends Service implements IGadgetService {
 		super.onCreate();
 		this.binder = new GadgetServiceBinder(this); 
 		handler = new Handler(Looper.getMainLooper());
+		/* The RPC core logs to logcat */
+		Logger.setSink(new Logger.Sink() {
+			public void d(String tag, String message) {
+				Log.d(tag, message);
+			}
+		});
+		config = GadgetPreferences.load(this.getSharedPreferences(GadgetPreferences.PREFERENCES, Context.MODE_PRIVATE));
+		/* Build the remote methods dispatch table once, before any request */
+		MethodTable.setDefault(new MethodTable(IInspectionService.class));
+		appContext = this.getApplicationContext();
+		if (router == null)
+		{
+			router = new RequestRouter(new ServiceHost(), config);
+			dispatcher = router.getDispatcher();
+		}
+
+		/* Index Fino-enabled applications, kept up to date from package broadcasts */
+		if (packages == null)
+		{
+			packages = new PackageIndex(this.getApplicationContext(), dispatcher);
+			packages.register();
+		}
+
+		/* Pre-warm connections to the configured applications */
+		for (String app : config.prebindApps)
+			GadgetService.attachToApp(this.getApplicationContext(), app);
 	}
 	
-	public void OnDestroy() {
+	@Override
+	public void onDestroy() {
+		this.stopServer();
+		appContext = null;
+
+		/* Release every application binding */
+		for (String app : connections.keySet())
+			GadgetService.unregisterAppService(app);
+
+		if (packages != null)
+			packages.unregister();
+		packages = null;
+		if (router != null)
+			router.shutdown();
+		router = null;
+		dispatcher = null;
 		super.onDestroy();
-		this.unbindService(connection);
 	}
 
 	
+	/**
+	 * Retrieve Gadget's configuration
+	 * @return GadgetConfig the configuration loaded at service creation
+	 */
+	
+	public static GadgetConfig getConfig() {
+		return config;
+	}
+	
+	
+	/**
+	 * Retrieve the dispatcher shared by every server mode
+	 * @return Dispatcher the dispatcher running requests on the worker pool
+	 */
+	
+	public static Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+	
+	
 	/**
 	 * Check if an application's service has already been registered
 	 * @param appPkg the target application service name
 	 * @return True if registered, false otherwise
 	 */
 	
-	public static synchronized boolean isRegisteredAppService(String appPkg) {
-		return inspectionServices.containsKey(appPkg);
+	public static boolean isRegisteredAppService(String appPkg) {
+		return registry.getService(appPkg) != null;
 	}
 	
 	
@@ -460,27 +474,21 @@ public class GadgetService extends Service implements IGadgetService {
 	 * @param service the remote service interface
 	 */
 	
-	public static synchronized void registerAppService(Context context, String appPkg, IInspectionService service) {
-		if (GadgetService.inspectionServices.containsKey(appPkg))
-		{
-			try {
-				if (connection != null)
-					context.unbindService(connection);
-			} catch (Exception e) {
-			}
-		}
-		GadgetService.inspectionServices.put(appPkg, service);
+	public static void registerAppService(Context context, String appPkg, IInspectionService service) {
+		registry.connected(appPkg, service);
 	}
 	
 	
 	/**
-	 * Unregister an existing service
+	 * Unregister an existing service, and release its binding
 	 * @param appPkg the target application
 	 */
 	
-	public static synchronized void unregisterAppService(String appPkg) {
-		if (!GadgetService.inspectionServices.containsKey(appPkg))
-			GadgetService.inspectionServices.remove(appPkg);
+	public static void unregisterAppService(String appPkg) {
+		AppConnection conn = connections.remove(appPkg);
+		if (conn != null)
+			conn.unbind();
+		registry.remove(appPkg);
 	}
 	
 	
@@ -489,11 +497,8 @@ public class GadgetService extends Service implements IGadgetService {
 	 * @param appPkg the application name
 	 * @return IInspectionService the remote service interface (binder)
 	 */
-	public static synchronized IInspectionService getAppService(final String appPkg) {
-		if (GadgetService.inspectionServices.containsKey(appPkg))
-			return GadgetService.inspectionServices.get(appPkg);
-		else
-			return null;
+	public static IInspectionService getAppService(final String appPkg) {
+		return registry.getService(appPkg);
 	}
 	
 	
@@ -501,59 +506,130 @@ public class GadgetService extends Service implements IGadgetService {
 	 * Attach GadgetService to a remote application. 
 	 * 
 	 * This method launches the remote Fino service implemented in the target application,
-	 * then launch the main activity once connected.
+	 * then launch the main activity once connected. Binding completes asynchronously:
+	 * the returned latch is released once the service is registered, or if the
+	 * binding failed. Concurrent attachments to a same application share a latch.
 	 * 
 	 * @param context the target context
 	 * @param appPkg the application's name
+	 * @return CountDownLatch released when the binding is over, null if already connected
 	 */
 	
-	public static void attachToApp(final Context context, final String appPkg) {
-		ServiceConnection mConnection = new ServiceConnection() {
-		    // Called when the connection with the service is established
-		    public void onServiceConnected(ComponentName className, IBinder service) {
-		        // Following the example above for an AIDL interface,
-		        // this gets an instance of the IRemoteInterface, which we can use to call on the service
-		    	Log.d(GadgetService.TAG, "Connected to " + appPkg);
-		        GadgetService.registerAppService(context, appPkg, IInspectionService.Stub.asInterface(service));
-		        
-				/* Launch application only when the corresponding service is started */
-                /*
-				Intent i = new Intent();
-				PackageManager manager = context.getPackageManager();
-				i = manager.getLaunchIntentForPackage(appPkg);
-				if (i != null)
-				{
-					i.addCategory(Intent.CATEGORY_LAUNCHER);
-					context.startActivity(i);
-				}
-                */
-		    }
-
-		    // Called when the connection with the service disconnects unexpectedly
-		    public void onServiceDisconnected(ComponentName className) {
-		    	Log.d(GadgetService.TAG, "Disconnected from " + appPkg);
-		        GadgetService.unregisterAppService(appPkg);
-		    }
-		};
-		
-		/* First bind to service */
-		Intent intent = new Intent("com.sysdream.fino.inspection");
-		intent.setPackage(appPkg);
-		Log.d(TAG, "Connecting to application "+appPkg);
-		context.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+	public static CountDownLatch attachToApp(final Context context, final String appPkg) {
+		/* Already connected, or binding in progress */
+		final AppRegistry.Entry binding = AppRegistry.binding(appPkg);
+		AppRegistry.Entry current = registry.startBinding(binding);
+		if (current != binding)
+			return current.getLatch();
+
+		/* Each application owns a single connection, reused when rebinding */
+		AppConnection conn = connections.get(appPkg);
+		if (conn == null)
+		{
+			AppConnection created = new AppConnection(context.getApplicationContext(), appPkg, registry);
+			conn = connections.putIfAbsent(appPkg, created);
+			if (conn == null)
+				conn = created;
+		}
+		if (!conn.bind())
+			registry.bindFailed(binding);
+		return binding.getLatch();
 	}
 	
 	
 	/**
-	 * Start server thread if required.
+	 * Attach GadgetService to a remote application and wait for its service.
+	 * Must not be called from the main thread, which delivers the binding.
+	 * 
+	 * @param context the target context
+	 * @param appPkg the application's name
+	 * @param timeout how long to wait, in milliseconds
+	 * @return IInspectionService the remote service interface, null if not bound in time
+	 */
+	
+	public static IInspectionService connectApp(Context context, String appPkg, long timeout) throws InterruptedException {
+		CountDownLatch bound = GadgetService.attachToApp(context, appPkg);
+		if (bound != null)
+			bound.await(timeout, TimeUnit.MILLISECONDS);
+		return GadgetService.getAppService(appPkg);
+	}
+	
+	
+	/**
+	 * Platform side of the request router: services bound through the
+	 * registry, applications from the package index
 	 */
+
+	private static class ServiceHost implements IServiceHost {
+
+		public Object getService(String app) {
+			return GadgetService.getAppService(app);
+		}
+
+		public Object connect(String app, long timeout) throws InterruptedException {
+			Context context = appContext;
+			if (context == null)
+				return null;
+			return GadgetService.connectApp(context, app, timeout);
+		}
+
+		public boolean isDead(Throwable error) {
+			return error instanceof DeadObjectException;
+		}
+
+		public void markDead(String app, Object service) {
+			registry.markDead(app, (IInspectionService)service);
+		}
+
+		public boolean hasDied(String app) {
+			AppRegistry.Entry entry = registry.get(app);
+			return (entry != null) && (entry.state == AppRegistry.DEAD);
+		}
+
+		public String[] getApps() {
+			return packages.getApps();
+		}
+
+		public void subscribeApps(Dispatcher.Client client, Integer id) {
+			packages.subscribe(client, id);
+		}
+
+		public boolean unsubscribeApps(Dispatcher.Client client) {
+			return packages.unsubscribe(client);
+		}
+	}
 	
+	
+	/**
+	 * Start server thread if required.
+	 *
+	 * @param address the address to connect to in reverse-connect mode, the socket name
+	 *        in local mode (null for the configured one), unused in TCP server modes
+	 * @param port the port to listen on, or to connect to in reverse-connect mode, unused in local mode
+	 * @param mode server mode, see IGadgetService.MODE_* constants
+	 */
+
 	public void startServer(String address, int port, int mode) {
-		if (this.server_thread == null)
+		if (GadgetService.server_thread == null)
 		{
 			Log.d("Service", "server_thread == null");
-			this.server_thread = new ServerThread(port);
-			this.server_thread.start();
+			if (mode == IGadgetService.MODE_REVERSE)
+				GadgetService.server_thread = new ReverseConnectThread(dispatcher, config, address, port);
+			else if (mode == IGadgetService.MODE_LOCAL)
+			{
+				/* The address names the local socket */
+				if (address == null)
+					address = config.localSocketName;
+				GadgetService.server_thread = new LocalServerThread(dispatcher, config, address);
+			}
+			else if (mode == IGadgetService.MODE_NIO_SERVER)
+				GadgetService.server_thread = new NioServerThread(dispatcher, config, port);
+			else
+				GadgetService.server_thread = new ServerThread(port);
+			GadgetService.server_mode = mode;
+			GadgetService.server_address = address;
+			GadgetService.server_port = port;
+			GadgetService.server_thread.start();
 		}
 	}
 
@@ -564,9 +640,9 @@ public class GadgetService extends Service implements IGadgetService {
 	
 	public void stopServer() {
 		Log.d("Service", "Stop service");
-		if (this.server_thread != null)
-			this.server_thread.kill();
-		this.server_thread = null;
+		if (GadgetService.server_thread != null)
+			GadgetService.server_thread.kill();
+		GadgetService.server_thread = null;
 	}
 
 
@@ -575,8 +651,7 @@ public class GadgetService extends Service implements IGadgetService {
 	 */
 	
 	public int getMode() {
-		// TODO Auto-generated method stub
-		return 0;
+		return GadgetService.server_mode;
 	}
 
 
@@ -585,16 +660,25 @@ public class GadgetService extends Service implements IGadgetService {
 	 */
 	
 	public String getAddress() {
-		return null;
+		return GadgetService.server_address;
 	}
 
 	/**
 	 * Get server remote-connect port
 	 */
 	public int getPort() {
-		return 0;
+		return GadgetService.server_port;
+	}
+
+	/**
+	 * Get a summary of the RPC metrics, for display
+	 */
+	
+	public String getStats() {
+		return Metrics.getInstance().summary(dispatcher);
 	}
 
+
 	/**
 	 * Handles service binding.
 	 */
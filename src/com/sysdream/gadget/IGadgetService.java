@@ -2,9 +2,23 @@ package com.sysdream.gadget;
 
 
 public interface IGadgetService {
+
+	/* Blocking TCP server, one thread per client */
+	public static final int MODE_SERVER = 0;
+
+	/* Non-blocking TCP server, selector + bounded worker pool */
+	public static final int MODE_NIO_SERVER = 1;
+
+	/* Reverse connection to the workstation, sessions multiplexed over one uplink */
+	public static final int MODE_REVERSE = 2;
+
+	/* Local server on an abstract UNIX domain socket, for adb forward localabstract: */
+	public static final int MODE_LOCAL = 3;
+
 	public void startServer(String address, int port, int mode);
 	public void stopServer();
 	public int getMode();
 	public String getAddress();
 	public int getPort();
+	public String getStats();
 }
@@ -0,0 +1,240 @@
+package com.sysdream.gadget;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+
+/**
+ * Local server thread
+ *
+ * Listens on a UNIX domain socket in the abstract namespace and serves the
+ * same framed protocol as the TCP servers. Clients reach it without going
+ * through the loopback TCP stack, either from the device itself or from
+ * the workstation with:
+ *
+ *   adb forward tcp:4444 localabstract:gadget
+ *
+ * Each client is read by its own thread, while requests run on the shared
+ * dispatcher (see Channel). A write blocked past the write timeout closes
+ * the client's socket, see WriteWatchdog.
+ */
+
+public class LocalServerThread extends Thread implements IGadgetServer {
+
+	private final static String TAG = "LocalServer";
+	private final static int OUT_BUFFER_SIZE = 8192;
+
+	private Dispatcher m_dispatcher = null;
+	private GadgetConfig m_config = null;
+	private String m_name = null;
+	private boolean m_running = false;
+	private volatile LocalServerSocket m_server = null;
+	private ArrayList<LocalChannel> m_clients = new ArrayList<LocalChannel>();
+	private WriteWatchdog m_watchdog = null;
+
+
+	/**
+	 * Client connected to the local socket
+	 */
+
+	private class LocalChannel extends Channel implements WriteWatchdog.Target {
+
+		private LocalSocket m_socket;
+		private OutputStream m_out;
+		private Thread m_reader;
+
+		public LocalChannel(LocalSocket socket) throws IOException {
+			super(m_dispatcher, m_config.maxFrameSize, m_config.maxInFlight);
+			this.m_socket = socket;
+			this.m_out = new BufferedOutputStream(socket.getOutputStream(), OUT_BUFFER_SIZE);
+			this.m_reader = new Thread(new Runnable() {
+				public void run() {
+					LocalChannel.this.read();
+				}
+			});
+		}
+
+
+		public void start() {
+			this.m_reader.start();
+		}
+
+
+		/**
+		 * Read frames until the client disconnects
+		 */
+
+		private void read() {
+			try {
+				FrameReader reader = new FrameReader(this.m_socket.getInputStream(), m_config.maxFrameSize);
+				while (true) {
+					int size = reader.readFrame();
+					if (size < 0)
+						break;
+					this.onFrame(reader.getBuffer(), 0, size);
+					this.awaitRoom();
+				}
+				Log.d(TAG, "Client disconnected");
+			}
+			catch (IOException e) {
+				/* Truncated or oversized frame, or socket closed by kill() */
+				Log.d(TAG, "Client closed: " + e.getMessage());
+			}
+			catch (InterruptedException e) {
+				Log.d(TAG, "Client thread interrupted");
+			}
+			finally {
+				this.kill();
+				LocalServerThread.this.onClientDisconnect(this);
+			}
+		}
+
+
+		public void sendFrame(FrameBuffer frame, boolean more) throws IOException {
+			synchronized (this.m_out) {
+				m_watchdog.begin(this);
+				try {
+					frame.writeFrame(this.m_out, more);
+					this.m_out.flush();
+				}
+				finally {
+					m_watchdog.end(this);
+				}
+			}
+		}
+
+
+		public void onWriteTimeout() {
+			this.kill();
+		}
+
+
+		public void kill() {
+			try {
+				/* Closing alone does not wake up a blocked write */
+				this.m_socket.shutdownOutput();
+			}
+			catch (IOException e) {
+			}
+			try {
+				this.m_socket.close();
+			}
+			catch (IOException e) {
+			}
+			this.close();
+		}
+	}
+
+
+	/**
+	 * Constructor
+	 * @param dispatcher the dispatcher running requests
+	 * @param config limits configuration
+	 * @param name the socket's name in the abstract namespace
+	 */
+
+	public LocalServerThread(Dispatcher dispatcher, GadgetConfig config, String name) {
+		this.m_dispatcher = dispatcher;
+		this.m_config = config;
+		this.m_name = name;
+		this.m_watchdog = new WriteWatchdog(config.writeTimeout);
+	}
+
+
+	@Override
+	public void start() {
+		m_running = true;
+		super.start();
+	}
+
+
+	/**
+	 * Check if this thread is running
+	 * @return boolean True if running, false otherwise
+	 */
+
+	public synchronized boolean isRunning() {
+		return this.m_running;
+	}
+
+
+	/**
+	 * Kill this thread and every client
+	 */
+
+	public synchronized void kill() {
+		m_running = false;
+		synchronized (this.m_clients) {
+			for (LocalChannel client : new ArrayList<LocalChannel>(this.m_clients))
+				client.kill();
+		}
+		this.m_watchdog.shutdown();
+		if (this.m_server != null)
+		{
+			/* Closing a LocalServerSocket does not wake up accept(), connect to it instead */
+			LocalSocket wakeup = new LocalSocket();
+			try {
+				wakeup.connect(new LocalSocketAddress(this.m_name));
+				wakeup.close();
+			}
+			catch (IOException e) {
+			}
+			try {
+				this.m_server.close();
+			}
+			catch (IOException e) {
+			}
+		}
+		this.interrupt();
+	}
+
+
+	/**
+	 * Local server's main loop
+	 */
+
+	public void run() {
+		try {
+			this.m_server = new LocalServerSocket(this.m_name);
+			Log.d(TAG, "Listening on @" + this.m_name);
+			while (this.isRunning()) {
+				LocalSocket sock = this.m_server.accept();
+				if (!this.isRunning())
+				{
+					sock.close();
+					break;
+				}
+				LocalChannel client;
+				synchronized (this.m_clients) {
+					if (this.m_clients.size() >= this.m_config.maxClients)
+					{
+						/* Too many clients, refuse connection */
+						Log.d(TAG, "Too many clients, connection refused");
+						sock.close();
+						continue;
+					}
+					client = new LocalChannel(sock);
+					this.m_clients.add(client);
+				}
+				client.start();
+			}
+		}
+		catch (IOException e) {
+			Log.d(TAG, "Local socket closed: " + e.getMessage());
+		}
+	}
+
+
+	private void onClientDisconnect(LocalChannel client) {
+		synchronized (this.m_clients) {
+			this.m_clients.remove(client);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.sysdream.gadget;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.util.Log;
+
+
+/**
+ * Package index
+ *
+ * In-memory list of the installed applications embedding a Fino inspection
+ * service, so listApps does not query the package manager each time. The
+ * list is built once, then updated from package added, removed, replaced
+ * and changed broadcasts. Updates run on the worker pool, out of the main
+ * thread.
+ *
+ * Clients may subscribe to changes: each time an application appears or
+ * disappears, subscribers are pushed a response carrying their
+ * subscription request's ID:
+ *
+ *   {"event": "added", "app": "com.example", "apps": ["com.example", ...]}
+ */
+
+public class PackageIndex extends BroadcastReceiver {
+
+	public final static String FINO_ACTION = "com.sysdream.fino.inspection";
+	private final static String TAG = "PackageIndex";
+
+
+	/**
+	 * Subscribed client
+	 */
+
+	private static class Subscriber {
+		final Dispatcher.Client client;
+		final Integer id;
+
+		Subscriber(Dispatcher.Client client, Integer id) {
+			this.client = client;
+			this.id = id;
+		}
+	}
+
+	private Context m_context;
+	private Dispatcher m_dispatcher;
+	private volatile String[] m_apps = null;
+	private CopyOnWriteArrayList<Subscriber> m_subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private Dispatcher.Client.Listener m_closed = new Dispatcher.Client.Listener() {
+		public void onClose(Dispatcher.Client client) {
+			PackageIndex.this.unsubscribe(client);
+		}
+	};
+
+
+	/**
+	 * Constructor
+	 * @param context the context used to query packages
+	 * @param dispatcher the dispatcher running updates
+	 */
+
+	public PackageIndex(Context context, Dispatcher dispatcher) {
+		this.m_context = context;
+		this.m_dispatcher = dispatcher;
+	}
+
+
+	/**
+	 * Start listening to package broadcasts
+	 */
+
+	public void register() {
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addDataScheme("package");
+		this.m_context.registerReceiver(this, filter);
+	}
+
+
+	/**
+	 * Stop listening to package broadcasts
+	 */
+
+	public void unregister() {
+		try {
+			this.m_context.unregisterReceiver(this);
+		}
+		catch (IllegalArgumentException e) {
+			/* Not registered */
+		}
+	}
+
+
+	/**
+	 * Get the applications embedding a Fino service
+	 * @return String[] the sorted package names
+	 */
+
+	public String[] getApps() {
+		String[] apps = this.m_apps;
+		if (apps == null)
+			apps = this.rebuild();
+		return apps.clone();
+	}
+
+
+	/**
+	 * Subscribe a client to changes, until it unsubscribes or is closed
+	 * @param client the client to notify
+	 * @param id the ID pushed responses carry
+	 */
+
+	public void subscribe(Dispatcher.Client client, Integer id) {
+		this.unsubscribe(client);
+		this.m_subscribers.add(new Subscriber(client, id));
+		client.addListener(this.m_closed);
+	}
+
+
+	/**
+	 * Unsubscribe a client
+	 * @param client the client
+	 * @return boolean True if it was subscribed
+	 */
+
+	public boolean unsubscribe(Dispatcher.Client client) {
+		boolean found = false;
+		for (Subscriber sub : this.m_subscribers)
+		{
+			if (sub.client == client)
+				found |= this.m_subscribers.remove(sub);
+		}
+		return found;
+	}
+
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Uri data = intent.getData();
+		if (data == null)
+			return;
+		final String pkg = data.getSchemeSpecificPart();
+
+		/* Removal of a package being upgraded, it will be added back */
+		if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+				&& intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))
+			return;
+
+		try {
+			this.m_dispatcher.execute(new Runnable() {
+				public void run() {
+					PackageIndex.this.update(pkg);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			/* Pool saturated, rebuild on next lookup */
+			this.m_apps = null;
+		}
+	}
+
+
+	/**
+	 * Query the whole list of Fino-enabled applications
+	 * @return String[] the sorted package names
+	 */
+
+	private synchronized String[] rebuild() {
+		TreeSet<String> apps = new TreeSet<String>();
+		for (ResolveInfo r : this.query(null))
+			apps.add(r.serviceInfo.packageName);
+		String[] list = apps.toArray(new String[apps.size()]);
+		this.m_apps = list;
+		return list;
+	}
+
+
+	/**
+	 * Check a single package after a broadcast, and notify subscribers if
+	 * it appeared or disappeared
+	 * @param pkg the package name
+	 */
+
+	private void update(String pkg) {
+		String event = null;
+		String[] list;
+
+		synchronized (this) {
+			if (this.m_apps == null)
+				this.rebuild();
+
+			TreeSet<String> apps = new TreeSet<String>();
+			for (String app : this.m_apps)
+				apps.add(app);
+			boolean fino = !this.query(pkg).isEmpty();
+			if (fino && apps.add(pkg))
+				event = "added";
+			else if (!fino && apps.remove(pkg))
+				event = "removed";
+			if (event == null)
+				return;
+
+			list = apps.toArray(new String[apps.size()]);
+			this.m_apps = list;
+		}
+
+		Log.d(TAG, pkg + " " + event);
+		LinkedHashMap<String, Object> change = new LinkedHashMap<String, Object>();
+		change.put("event", event);
+		change.put("app", pkg);
+		change.put("apps", list);
+		this.publish(change);
+	}
+
+
+	/**
+	 * Push a change to every subscriber, dropping any disconnected one
+	 * not removed yet
+	 * @param change the event
+	 */
+
+	private void publish(Object change) {
+		List<Subscriber> gone = new ArrayList<Subscriber>();
+		for (Subscriber sub : this.m_subscribers)
+		{
+			Response resp = new Response(change, true);
+			resp.id = sub.id;
+			if (!sub.client.push(resp))
+				gone.add(sub);
+		}
+		this.m_subscribers.removeAll(gone);
+	}
+
+
+	private List<ResolveInfo> query(String pkg) {
+		Intent intent = new Intent(FINO_ACTION);
+		if (pkg != null)
+			intent.setPackage(pkg);
+		List<ResolveInfo> services = this.m_context.getPackageManager().queryIntentServices(intent, 0);
+		if (services == null)
+			return new ArrayList<ResolveInfo>();
+		return services;
+	}
+}